@@ -157,7 +157,7 @@ public interface DBus extends DBusInterface
     * Add a match rule.
     * Will cause you to receive messages that aren't directed to you which 
     * match this rule.
-    * @param matchrule The Match rule as a string. Format Undocumented.
+    * @param matchrule The Match rule as a string, of comma separated key='value' pairs.
     */
    public void AddMatch(String matchrule) throws Error.MatchRuleInvalid;
 
@@ -165,7 +165,7 @@ public interface DBus extends DBusInterface
     * Remove a match rule.
     * Will cause you to stop receiving messages that aren't directed to you which 
     * match this rule.
-    * @param matchrule The Match rule as a string. Format Undocumented.
+    * @param matchrule The Match rule as a string, of comma separated key='value' pairs.
     */
    public void RemoveMatch(String matchrule) throws Error.MatchRuleInvalid;
 
@@ -282,6 +282,17 @@ public interface DBus extends DBusInterface
             super(message);
          }
       }
+      /**
+       * Thrown if a match rule being removed was never added
+       */
+      @SuppressWarnings("serial")
+      public class MatchRuleNotFound extends DBusExecutionException
+      {
+         public MatchRuleNotFound(String message)
+         {
+            super(message);
+         }
+      }
       /**
        * Thrown if there is no reply to a method call
        */
@@ -329,6 +340,16 @@ public interface DBus extends DBusInterface
       @Target(ElementType.METHOD)
       @Retention(RetentionPolicy.RUNTIME)
       public @interface NoReply {}
+      /**
+       * Calls to methods annotated with this fail with a NoReply error if
+       * there is no reply within the given number of milliseconds
+       */
+      @Target(ElementType.METHOD)
+      @Retention(RetentionPolicy.RUNTIME)
+      public @interface Timeout
+      {
+         long value();
+      }
       /**
        * Give an error that the method can return
        */
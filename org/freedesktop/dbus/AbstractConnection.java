@@ -14,7 +14,6 @@ import static org.freedesktop.dbus.Gettext._;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Type;
 
 import java.io.File;
 import java.io.IOException;
@@ -29,6 +28,13 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import org.freedesktop.DBus;
@@ -37,6 +43,7 @@ import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.exceptions.DBusExecutionException;
 import org.freedesktop.dbus.exceptions.FatalDBusException;
 import org.freedesktop.dbus.exceptions.FatalException;
+import org.freedesktop.dbus.exceptions.QueueFull;
 
 import cx.ath.matthew.debug.Debug;
 
@@ -149,25 +156,16 @@ public abstract class AbstractConnection
                "\"http://www.freedesktop.org/standards/dbus/1.0/introspect.dtd\">\n"+intro;
       }
    }
-   protected class _workerthread extends Thread
+   private static class _workerthread extends Thread
    {
-      private boolean _run = true;
-      public void halt()
-      {
-         _run = false;
-      }
-      public void run()
+      _workerthread(Runnable r, String name) { super(r, name); }
+   }
+   private static class _workerfactory implements ThreadFactory
+   {
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r)
       {
-        while (_run) {
-           Runnable r = null;
-           synchronized (runnables) {
-              while (runnables.size() == 0 && _run) 
-                 try { runnables.wait(); } catch (InterruptedException Ie) {}
-              if (runnables.size() > 0)
-                 r = runnables.removeFirst();
-           }
-           if (null != r) r.run();
-        }
+         return new _workerthread(r, "DBus Worker Thread-"+count.incrementAndGet());
       }
    }
    private class _sender extends Thread
@@ -178,37 +176,48 @@ public abstract class AbstractConnection
       }
       public void run()
       {
-         Message m = null;
+         Message[] batch = new Message[0];
 
          if (Debug.debug) Debug.print(Debug.INFO, "Monitoring outbound queue");
-         // block on the outbound queue and send from it
+         // block on the outbound queue and send everything queued from it
          while (_run) {
+            int n = 0;
             if (null != outgoing) synchronized (outgoing) {
                if (Debug.debug) Debug.print(Debug.VERBOSE, "Blocking");
                while (outgoing.size() == 0 && _run) 
                   try { outgoing.wait(); } catch (InterruptedException Ie) {}
                if (Debug.debug) Debug.print(Debug.VERBOSE, "Notified");
-               if (outgoing.size() > 0)
-                  m = outgoing.remove();
-               if (Debug.debug) Debug.print(Debug.DEBUG, "Got message: "+m);
+               n = Math.min(outgoing.size(), maxbatch);
+               if (batch.length < n) batch = new Message[n];
+               for (int i = 0; i < n; i++)
+                  batch[i] = outgoing.remove();
+               if (Debug.debug) Debug.print(Debug.DEBUG, "Got "+n+" messages");
+               // wake anyone waiting for space
+               outgoing.notifyAll();
+               if (abovewatermark && outgoing.size() <= lowwatermark)
+                  abovewatermark = false;
             }
-            if (null != m) 
-               sendMessage(m);
-            m = null;
+            if (abovewatermark != reportedhigh) reportWatermark();
+            if (n > 0) 
+               sendMessages(batch, n);
+            for (int i = 0; i < n; i++)
+               batch[i] = null;
          }
 
          if (Debug.debug) Debug.print(Debug.INFO, "Flushing outbound queue and quitting");
          // flush the outbound queue before disconnect.
-         if (null != outgoing) do {
-				EfficientQueue ogq = outgoing;
+         EfficientQueue ogq = outgoing;
+         if (null != ogq) {
             synchronized (ogq) {
-					outgoing = null;
-				}
-				if (!ogq.isEmpty())
-					m = ogq.remove(); 
-				else m = null;
-				sendMessage(m);
-         } while (null != m);
+               // queueOutgoing adds nothing once this is cleared, so the
+               // queue can be drained without the lock
+               outgoing = null;
+               // wake anyone waiting for space, there will be none
+               ogq.notifyAll();
+            }
+            while (!ogq.isEmpty())
+               sendMessage(ogq.remove());
+         }
 
          // close the underlying streams
       }
@@ -217,8 +226,26 @@ public abstract class AbstractConnection
     * Timeout in us on checking the BUS for incoming messages and sending outgoing messages
     */
    protected static final int TIMEOUT = 100000;
+   /** Default maximum number of messages sent in one write */
+   static final int MAX_BATCH_MESSAGES = 64;
+   /** Default number of bytes after which a batch is written */
+   static final int MAX_BATCH_BYTES = 65536;
+   /**
+    * What to do with a message when the outgoing queue is full.
+    */
+   public interface QueueFullPolicy
+   {
+      /** Wait until there is space. */
+      public static final int BLOCK = 0;
+      /** Throw a QueueFull exception. */
+      public static final int FAIL = 1;
+      /** Drop the oldest queued signals to make space, or wait if there are none. */
+      public static final int DROP_OLDEST_SIGNALS = 2;
+   }
    /** Initial size of the pending calls map */
    private static final int PENDING_MAP_INITIAL_SIZE = 10;
+   /** Time in ms disconnect waits for queued handlers to finish */
+   private static final int DISCONNECT_WAIT = 1000;
    static final String BUSNAME_REGEX = "^[-_a-zA-Z][-_a-zA-Z0-9]*(\\.[-_a-zA-Z][-_a-zA-Z0-9]*)*$";
    static final String CONNID_REGEX = "^:[0-9]*\\.[0-9]*$";
    static final String OBJECT_REGEX = "^/([-_a-zA-Z0-9]+(/[-_a-zA-Z0-9]+)*)?$";
@@ -229,19 +256,36 @@ public abstract class AbstractConnection
    private ObjectTree objectTree;
    private _globalhandler _globalhandlerreference;
    protected Map<DBusInterface,RemoteObject> importedObjects;
-   protected Map<SignalTuple,Vector<DBusSigHandler<? extends DBusSignal>>> handledSignals;
-   protected EfficientMap pendingCalls;
-   protected Map<MethodCall, CallbackHandler<? extends Object>> pendingCallbacks;
-   protected Map<MethodCall, DBusAsyncReply<? extends Object>> pendingCallbackReplys;
-   protected LinkedList<Runnable> runnables;
-   protected LinkedList<_workerthread> workers;
+   protected SignalIndex handledSignals;
+   protected PendingCallMap pendingCalls;
+   private final TimeoutWheel timeouts;
+   /* the pool we created, or null if the user has supplied an executor */
+   private ThreadPoolExecutor workers;
+   private volatile ExecutorService executor;
+   private final KeyedExecutor keyed;
+   private volatile boolean ordered = false;
    protected FallbackContainer fallbackcontainer;
    protected boolean _run;
    EfficientQueue outgoing;
    LinkedList<Error> pendingErrors;
-   private static final Map<Thread,DBusCallInfo> infomap = new HashMap<Thread,DBusCallInfo>();
+   private static final ThreadLocal<DBusCallInfo> infomap = new ThreadLocal<DBusCallInfo>();
    protected _thread thread;
    protected _sender sender;
+   private volatile int maxbatch = MAX_BATCH_MESSAGES;
+   private volatile int maxbatchbytes = MAX_BATCH_BYTES;
+   private volatile byte endian = Message.getDefaultEndianness();
+   /* limits on the outgoing queue, 0 for none */
+   private volatile int maxqueue = 0;
+   private volatile long maxqueuebytes = 0;
+   private volatile int queuepolicy = QueueFullPolicy.BLOCK;
+   private volatile int highwatermark = 0;
+   private volatile int lowwatermark = 0;
+   private volatile QueueWatermarkHandler watermarkhandler = null;
+   /* set when the queue is between the high and low watermarks, changed with outgoing held */
+   private volatile boolean abovewatermark = false;
+   /* what watermarkhandler was last told, guarded by watermarklock */
+   private volatile boolean reportedhigh = false;
+   private final Object watermarklock = new Object();
    protected Transport transport;
    protected String addr;
    protected boolean weakreferences = false;
@@ -249,6 +293,8 @@ public abstract class AbstractConnection
    public static final boolean EXCEPTION_DEBUG;
    static final boolean FLOAT_SUPPORT;
 	protected boolean connected = false;
+   /** Set while the finalizer disconnects, which must not wait for the workers */
+   private volatile boolean finalizing = false;
    static {
       FLOAT_SUPPORT = (null != System.getenv("DBUS_JAVA_FLOATS"));
       EXCEPTION_DEBUG = (null != System.getenv("DBUS_JAVA_EXCEPTION_DEBUG"));
@@ -280,23 +326,17 @@ public abstract class AbstractConnection
       synchronized (exportedObjects) {
          exportedObjects.put(null, new ExportedObject(_globalhandlerreference, weakreferences));
       }
-      handledSignals = new HashMap<SignalTuple,Vector<DBusSigHandler<? extends DBusSignal>>>();
-      pendingCalls = new EfficientMap(PENDING_MAP_INITIAL_SIZE);
+      handledSignals = new SignalIndex();
+      pendingCalls = new PendingCallMap(PENDING_MAP_INITIAL_SIZE);
+      timeouts = new TimeoutWheel(this);
       outgoing = new EfficientQueue(PENDING_MAP_INITIAL_SIZE);
-      pendingCallbacks = new HashMap<MethodCall, CallbackHandler<? extends Object>>();
-      pendingCallbackReplys = new HashMap<MethodCall, DBusAsyncReply<? extends Object>>();
       pendingErrors = new LinkedList<Error>();
-      runnables = new LinkedList<Runnable>();
-      workers = new LinkedList<_workerthread>();
       objectTree = new ObjectTree();
       fallbackcontainer = new FallbackContainer();
-      synchronized (workers) {
-         for (int i = 0; i < THREADCOUNT; i++) {
-            _workerthread t = new _workerthread();
-            t.start();
-            workers.add(t);
-         }
-      }
+      workers = new ThreadPoolExecutor(THREADCOUNT, THREADCOUNT, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new _workerfactory());
+      executor = workers;
+      keyed = new KeyedExecutor(workers);
       _run = true;
       addr = address;
    }
@@ -317,28 +357,176 @@ public abstract class AbstractConnection
     */
    public void changeThreadCount(byte newcount)
    {
-      synchronized (workers) {
-         if (workers.size() > newcount) {
-            int n = workers.size() - newcount;
-            for (int i = 0; i < n; i++) {
-               _workerthread t = workers.removeFirst();
-               t.halt();
-            }
-         } else if (workers.size() < newcount) {
-            int n = newcount-workers.size();
-            for (int i = 0; i < n; i++) {
-               _workerthread t = new _workerthread();
-               t.start();
-               workers.add(t);
-            }
+      changeThreadCount((int) newcount);
+   }
+   /**
+    * Change the number of worker threads to receive method calls and handle signals.
+    * Default is 4 threads. This has no effect once setExecutor has been called.
+    * @param newcount The new number of worker Threads to use.
+    */
+   public void changeThreadCount(int newcount)
+   {
+      synchronized (this) {
+         if (null == workers || newcount < 1) return;
+         if (newcount > workers.getMaximumPoolSize()) {
+            workers.setMaximumPoolSize(newcount);
+            workers.setCorePoolSize(newcount);
+         } else {
+            workers.setCorePoolSize(newcount);
+            workers.setMaximumPoolSize(newcount);
          }
       }
    }
+   /**
+    * Run method calls, signal handlers and callbacks on the given executor
+    * rather than the connection's own pool of worker threads, which is
+    * shut down. The executor is not shut down when the connection is
+    * disconnected, and disconnect does not wait for the tasks queued on it,
+    * so Disconnected handlers may still be running when disconnect
+    * returns. Handlers for one connection may run concurrently, so
+    * an executor which starts a new (possibly virtual) thread for each
+    * task allows any number of handlers to block at once.
+    * @param e The executor to use.
+    */
+   public void setExecutor(ExecutorService e)
+   {
+      if (null == e) throw new NullPointerException();
+      ThreadPoolExecutor old;
+      synchronized (this) {
+         old = workers;
+         workers = null;
+         executor = e;
+         keyed.setExecutor(e);
+      }
+      if (null != old) old.shutdown();
+   }
+   /**
+    * Set whether incoming calls and signals are dispatched in order.
+    * When set, method calls from one sender to one object path are run one
+    * at a time in the order they arrived, as are signals for each signal
+    * handler. Other work still runs in parallel. Default is false, which
+    * runs everything on whichever worker thread is free.
+    * A method which, while handling a call, makes a call which leads to
+    * another call from the same sender to the same path will wait for
+    * itself until the call times out.
+    * @param ordered True to keep the order of calls and signals.
+    */
+   public void setOrderedDispatch(boolean ordered)
+   {
+      this.ordered = ordered;
+   }
+   /**
+    * Set how many queued messages may be sent together. The sending thread
+    * takes up to messages messages from the queue at a time and writes them
+    * with as few writes as possible, writing early once bytes bytes
+    * are waiting. Defaults are 64 messages and 64KiB.
+    * @param messages The most messages to take at once, at least 1.
+    * @param bytes The number of bytes after which to write.
+    */
+   public void setSendBatchLimits(int messages, int bytes)
+   {
+      if (messages < 1 || bytes < 1) throw new IllegalArgumentException(_("Batch limits must be positive"));
+      maxbatch = messages;
+      maxbatchbytes = bytes;
+   }
+   /**
+    * Limit the number of messages waiting to be sent. By default the
+    * queue grows without limit. The limits and policy only apply to
+    * method calls and signals: replies and errors are always queued so
+    * that callers are not left waiting, and nothing sent from the thread
+    * which reads messages ever waits or fails, so that a peer which is
+    * also waiting for us cannot deadlock with us.
+    * @param messages The most messages to queue, or 0 for no limit.
+    * @param bytes The most marshalled bytes to queue, or 0 for no limit. A
+    *              single message larger than this is queued once the
+    *              queue is empty.
+    * @param policy One of the QueueFullPolicy constants.
+    */
+   public void setOutgoingQueueLimits(int messages, long bytes, int policy)
+   {
+      if (messages < 0 || bytes < 0) throw new IllegalArgumentException(_("Queue limits must not be negative"));
+      if (QueueFullPolicy.BLOCK != policy && QueueFullPolicy.FAIL != policy && QueueFullPolicy.DROP_OLDEST_SIGNALS != policy)
+         throw new IllegalArgumentException(_("Invalid queue policy: ")+policy);
+      maxqueue = messages;
+      maxqueuebytes = bytes;
+      queuepolicy = policy;
+      EfficientQueue q = outgoing;
+      if (null != q) synchronized (q) {
+         q.notifyAll();
+      }
+   }
+   /**
+    * Have a handler told when the number of messages waiting to be sent
+    * reaches high, and again when it falls back to low.
+    * @param high The high watermark, in messages.
+    * @param low The low watermark, in messages, less than high.
+    * @param handler The handler, or null for none.
+    */
+   public void setOutgoingQueueWatermarks(int high, int low, QueueWatermarkHandler handler)
+   {
+      if (null != handler && (low < 0 || low >= high)) throw new IllegalArgumentException(_("Invalid watermarks"));
+      highwatermark = high;
+      lowwatermark = low;
+      watermarkhandler = handler;
+   }
+   /* Tell the watermark handler if the queue has crossed a watermark since it was last told. */
+   private void reportWatermark()
+   {
+      QueueWatermarkHandler h = watermarkhandler;
+      synchronized (watermarklock) {
+         boolean above = abovewatermark;
+         if (above == reportedhigh) return;
+         reportedhigh = above;
+         if (null == h) return;
+         EfficientQueue q = outgoing;
+         int n = 0;
+         if (null != q) synchronized (q) {
+            n = q.size();
+         }
+         try {
+            if (above) h.high(n);
+            else h.low(n);
+         } catch (RuntimeException Re) {
+            if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, Re);
+         }
+      }
+   }
+   /**
+    * Set the byte order of the method calls, replies and errors this
+    * connection creates. The default is the native byte order, so peers
+    * on the same kind of machine need not swap bytes. Signals are created
+    * before they are given to a connection and so always use the native
+    * byte order.
+    * @param endian Message.Endian.BIG or Message.Endian.LITTLE.
+    */
+   public void setEndianness(byte endian)
+   {
+      if (Message.Endian.BIG != endian && Message.Endian.LITTLE != endian)
+         throw new IllegalArgumentException(_("Invalid byte order: ")+(char) endian);
+      this.endian = endian;
+   }
+   /**
+    * Returns the byte order of messages created by this connection.
+    * @return Message.Endian.BIG or Message.Endian.LITTLE.
+    */
+   public byte getEndianness()
+   {
+      return endian;
+   }
    private void addRunnable(Runnable r)
    {
-      synchronized(runnables) {
-         runnables.add(r);
-         runnables.notifyAll();
+      addRunnable(null, r);
+   }
+   /* Tasks with the same non-null key are run in order if ordered dispatch is on. */
+   private void addRunnable(Object key, Runnable r)
+   {
+      try {
+         if (ordered && null != key)
+            keyed.execute(key, r);
+         else
+            executor.execute(r);
+      } catch (RejectedExecutionException REe) {
+         if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, REe);
       }
    }
 
@@ -364,11 +552,7 @@ public abstract class AbstractConnection
     */
    public static DBusCallInfo getCallInfo() 
    {
-      DBusCallInfo info;
-      synchronized (infomap) {
-         info = infomap.get(Thread.currentThread());
-      }
-      return info;
+      return infomap.get();
    }
 
    /**
@@ -464,14 +648,51 @@ public abstract class AbstractConnection
    {
       queueOutgoing(signal);
    }
+   /**
+    * Queue a message to be sent, first waiting for space in the queue
+    * or dropping signals from it if it is full. Replies and errors are
+    * always queued, as are messages from the reader thread.
+    * @throws QueueFull if the queue is full and the policy is to fail.
+    */
    void queueOutgoing(Message m)
    {
-      synchronized (outgoing) {
-			if (null == outgoing) return;
-         outgoing.add(m); 
+      EfficientQueue q = outgoing;
+      if (null == q) return;
+      if (0 < maxqueuebytes && m instanceof DBusSignal) try {
+         // marshall the body now, so the signal is counted at its full size
+         ((DBusSignal) m).appendbody(this);
+      } catch (DBusException DBe) {
+         if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+         return;
+      }
+      // a lost reply would leave the caller waiting for its timeout
+      boolean reply = m instanceof MethodReturn || m instanceof Error;
+      synchronized (q) {
+         // the sender has flushed the queue for the last time
+         if (outgoing != q) return;
+         while (!reply && isFull(q, m)) {
+            if (!_run || !connected || Thread.currentThread() == thread) break;
+            if (QueueFullPolicy.DROP_OLDEST_SIGNALS == queuepolicy && null != q.removeSignal())
+               continue;
+            if (QueueFullPolicy.FAIL == queuepolicy)
+               throw new QueueFull(_("Outgoing queue is full"));
+            if (Debug.debug) Debug.print(Debug.VERBOSE, "Waiting for space in the outgoing queue");
+            try { q.wait(); } catch (InterruptedException Ie) {}
+            if (outgoing != q) return;
+         }
+         q.add(m); 
          if (Debug.debug) Debug.print(Debug.DEBUG, "Notifying outgoing thread");
-         outgoing.notifyAll();
+         q.notifyAll();
+         if (!abovewatermark && null != watermarkhandler && q.size() >= highwatermark)
+            abovewatermark = true;
       }
+      if (abovewatermark != reportedhigh) reportWatermark();
+   }
+   private boolean isFull(EfficientQueue q, Message m)
+   {
+      if (q.isEmpty()) return false;
+      return (0 < maxqueue && q.size() >= maxqueue)
+         || (0 < maxqueuebytes && q.bytes() + m.bytecounter > maxqueuebytes);
    }
    /** 
     * Remove a Signal Handler.
@@ -541,20 +762,14 @@ public abstract class AbstractConnection
    protected <T extends DBusSignal> void addSigHandlerWithoutMatch(Class<? extends DBusSignal> signal, DBusSigHandler<T> handler) throws DBusException
    {
       DBusMatchRule rule = new DBusMatchRule(signal);
-      SignalTuple key = new SignalTuple(rule.getInterface(), rule.getMember(), rule.getObject(), rule.getSource());
-      synchronized (handledSignals) {
-         Vector<DBusSigHandler<? extends DBusSignal>> v = handledSignals.get(key);
-         if (null == v) {
-            v = new Vector<DBusSigHandler<? extends DBusSignal>>();
-            v.add(handler);
-            handledSignals.put(key, v);
-         } else
-            v.add(handler);
-      }
+      handledSignals.add(rule.getInterface(), rule.getMember(), rule.getObject(), rule.getSource(), handler);
    }
 
    /** 
     * Disconnect from the Bus.
+    * When the connection's own worker threads are in use this waits briefly
+    * for pending handlers, including those for the Disconnected signal, to
+    * finish. It does not wait for an executor given to setExecutor.
     */
    public void disconnect()
    {
@@ -567,14 +782,9 @@ public abstract class AbstractConnection
 		}
 
       if (Debug.debug) Debug.print(Debug.INFO, "Disconnecting Abstract Connection");
-      // run all pending tasks.
-      while (runnables.size() > 0)
-         synchronized (runnables) {
-            runnables.notifyAll();
-         }
-
       // stop the main thread
       _run = false;
+      timeouts.stop();
 
       // unblock the sending thread.
       synchronized (outgoing) {
@@ -591,20 +801,28 @@ public abstract class AbstractConnection
          if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, IOe);            
       }
 
-      // stop all the workers
-      synchronized(workers) {
-         for (_workerthread t: workers)
-            t.halt();
+      // stop all the workers once they have run all pending tasks, and
+      // give them time to do so, so that the Disconnected handlers have run
+      // when we return. A worker cannot wait for its own pool, and the
+      // finalizer thread must not be held up.
+      ThreadPoolExecutor w;
+      synchronized (this) {
+         w = workers;
       }
-
-      // make sure none are blocking on the runnables queue still
-      synchronized (runnables) {
-         runnables.notifyAll();
+      if (null != w) {
+         w.shutdown();
+         if (!finalizing && !(Thread.currentThread() instanceof _workerthread)) try {
+            w.awaitTermination(DISCONNECT_WAIT, TimeUnit.MILLISECONDS);
+         } catch (InterruptedException Ie) {
+            // stop waiting, but leave the interrupt for the caller to see
+            Thread.currentThread().interrupt();
+         }
       }
    }
 
    public void finalize()
    {
+      finalizing = true;
       disconnect();
    }
    /**
@@ -628,8 +846,22 @@ public abstract class AbstractConnection
     * @param callback The callback handler.
     * @param parameters The parameters to call the method with.
     */
-   @SuppressWarnings("unchecked")
    public <A> void callWithCallback(DBusInterface object, String m, CallbackHandler<A> callback, Object... parameters)
+   {
+      callWithCallback(object, 0, m, callback, parameters);
+   }
+   /**
+    * Call a method asynchronously and set a callback, which is given a
+    * NoReply error if there is no reply in time.
+    * This handler will be called in a separate thread.
+    * @param object The remote object on which to call the method.
+    * @param timeout The time in ms to wait for a reply, or 0 for the default.
+    * @param m The name of the method on the interface to call.
+    * @param callback The callback handler.
+    * @param parameters The parameters to call the method with.
+    */
+   @SuppressWarnings("unchecked")
+   public <A> void callWithCallback(DBusInterface object, long timeout, String m, CallbackHandler<A> callback, Object... parameters)
    {
       if (Debug.debug) Debug.print(Debug.VERBOSE, "callWithCallback("+object+","+m+", "+callback);
       Class[] types = new Class[parameters.length];
@@ -643,7 +875,7 @@ public abstract class AbstractConnection
             me = object.getClass().getMethod(m, types);
          else
             me = ro.iface.getMethod(m, types);
-         RemoteInvocationHandler.executeRemoteMethod(ro, me, this, RemoteInvocationHandler.CALL_TYPE_CALLBACK, callback, parameters);
+         RemoteInvocationHandler.executeRemoteMethod(ro, me, this, RemoteInvocationHandler.CALL_TYPE_CALLBACK, callback, timeout, parameters);
       } catch (DBusExecutionException DBEe) {
          if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBEe);
          throw DBEe;
@@ -655,13 +887,29 @@ public abstract class AbstractConnection
  
    /**
     * Call a method asynchronously and get a handle with which to get the reply.
+    * The handle is a Future which is completed when the reply arrives.
+    * Remote interfaces may also declare methods returning Future or
+    * DBusAsyncReply of the real return type, which are called in this way.
     * @param object The remote object on which to call the method.
     * @param m The name of the method on the interface to call.
     * @param parameters The parameters to call the method with.
     * @return A handle to the call.
     */
-   @SuppressWarnings("unchecked")
    public DBusAsyncReply callMethodAsync(DBusInterface object, String m, Object... parameters)
+   {
+      return callMethodAsync(object, 0, m, parameters);
+   }
+   /**
+    * Call a method asynchronously and get a handle with which to get the
+    * reply, which is a NoReply error if there is no reply in time.
+    * @param object The remote object on which to call the method.
+    * @param timeout The time in ms to wait for a reply, or 0 for the default.
+    * @param m The name of the method on the interface to call.
+    * @param parameters The parameters to call the method with.
+    * @return A handle to the call.
+    */
+   @SuppressWarnings("unchecked")
+   public DBusAsyncReply<?> callMethodAsync(DBusInterface object, long timeout, String m, Object... parameters)
    {
       Class<?>[] types = new Class[parameters.length];
       for (int i = 0; i < parameters.length; i++) 
@@ -674,7 +922,7 @@ public abstract class AbstractConnection
             me = object.getClass().getMethod(m, types);
          else
             me = ro.iface.getMethod(m, types);
-         return (DBusAsyncReply) RemoteInvocationHandler.executeRemoteMethod(ro, me, this, RemoteInvocationHandler.CALL_TYPE_ASYNC, null, parameters);
+         return (DBusAsyncReply<?>) RemoteInvocationHandler.executeRemoteMethod(ro, me, this, RemoteInvocationHandler.CALL_TYPE_ASYNC, null, timeout, parameters);
       } catch (DBusExecutionException DBEe) {
          if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBEe);
          throw DBEe;
@@ -689,7 +937,7 @@ public abstract class AbstractConnection
       if (Debug.debug) Debug.print(Debug.DEBUG, "Handling incoming method call: "+m);
 
       ExportedObject eo = null;
-      Method meth = null;
+      MethodInvoker meth = null;
       Object o = null;
       
       if (null == m.getInterface() ||
@@ -703,7 +951,7 @@ public abstract class AbstractConnection
             eo = null;
          }
          if (null != eo) {
-            meth = eo.methods.get(new MethodTuple(m.getName(), m.getSig()));
+            meth = eo.getMethod(m.getName(), m.getSig());
          }
          if (null != meth)
             o = new _globalhandler(m.getPath());
@@ -728,20 +976,21 @@ public abstract class AbstractConnection
 
          if (null == eo) {
             try {
-               queueOutgoing(new Error(m, new DBus.Error.UnknownObject(m.getPath()+_(" is not an object provided by this process.")))); 
+               queueOutgoing(new Error(endian, null, m, new DBus.Error.UnknownObject(m.getPath()+_(" is not an object provided by this process.")))); 
             } catch (DBusException DBe) {}
             return;
          }
          if (Debug.debug) {
             Debug.print(Debug.VERBOSE, "Searching for method "+m.getName()+" with signature "+m.getSig());
             Debug.print(Debug.VERBOSE, "List of methods on "+eo+":");
-            for (MethodTuple mt: eo.methods.keySet())
-               Debug.print(Debug.VERBOSE, "   "+mt+" => "+eo.methods.get(mt));
+            for (String name: eo.methods.keySet())
+               for (String sig: eo.methods.get(name).keySet())
+                  Debug.print(Debug.VERBOSE, "   "+name+"("+sig+") => "+eo.methods.get(name).get(sig));
          }
-         meth = eo.methods.get(new MethodTuple(m.getName(), m.getSig()));
+         meth = eo.getMethod(m.getName(), m.getSig());
          if (null == meth) {
             try {
-               queueOutgoing(new Error(m, new DBus.Error.UnknownMethod(MessageFormat.format(_("The method `{0}.{1}' does not exist on this object."), new Object[] { m.getInterface(), m.getName() })))); 
+               queueOutgoing(new Error(endian, null, m, new DBus.Error.UnknownMethod(MessageFormat.format(_("The method `{0}.{1}' does not exist on this object."), new Object[] { m.getInterface(), m.getName() })))); 
             } catch (DBusException DBe) {}
             return;
          }
@@ -749,36 +998,30 @@ public abstract class AbstractConnection
       }
 
       // now execute it
-      final Method me = meth;
+      final MethodInvoker me = meth;
       final Object ob = o;
       final boolean noreply = (1 == (m.getFlags() & Message.Flags.NO_REPLY_EXPECTED));
       final DBusCallInfo info = new DBusCallInfo(m);
       final AbstractConnection conn = this;
       if (Debug.debug) Debug.print(Debug.VERBOSE, "Adding Runnable for method "+meth);
-      addRunnable(new Runnable() 
+      addRunnable(m.getSource()+" "+m.getPath(), new Runnable() 
       { 
-         private boolean run = false;
-         public synchronized void run() 
-         { 
-            if (run) return;
-            run = true;
+         public void run() 
+         {
             if (Debug.debug) Debug.print(Debug.DEBUG, "Running method "+me+" for remote call");
             try {
-               Type[] ts = me.getGenericParameterTypes();
-               m.setArgs(Marshalling.deSerializeParameters(m.getParameters(), ts, conn));
-               if (Debug.debug) Debug.print(Debug.VERBOSE, "Deserialised "+Arrays.deepToString(m.getParameters())+" to types "+Arrays.deepToString(ts));
+               m.setArgs(me.deSerialize(m.getParameters(), conn));
+               if (Debug.debug) Debug.print(Debug.VERBOSE, "Deserialised "+Arrays.deepToString(m.getParameters())+" to types "+Arrays.deepToString(me.method.getGenericParameterTypes()));
             } catch (Exception e) {
                if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
                try {
-                  conn.queueOutgoing(new Error(m, new DBus.Error.UnknownMethod(_("Failure in de-serializing message: ")+e))); 
+                  conn.queueOutgoing(new Error(conn.endian, null, m, new DBus.Error.UnknownMethod(_("Failure in de-serializing message: ")+e))); 
                } catch (DBusException DBe) {} 
                return;
             }
 
             try { 
-               synchronized (infomap) {
-                  infomap.put(Thread.currentThread(), info);
-               }
+               infomap.set(info);
                Object result;
                try {
                   if (Debug.debug) Debug.print(Debug.VERBOSE, "Invoking Method: "+me+" on "+ob+" with parameters "+Arrays.deepToString(m.getParameters()));
@@ -787,76 +1030,75 @@ public abstract class AbstractConnection
                   if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, ITe.getCause());
                   throw ITe.getCause();
                }
-               synchronized (infomap) {
-                  infomap.remove(Thread.currentThread());
-               }
+               infomap.remove();
                if (!noreply) {
                   MethodReturn reply;
-                  if (Void.TYPE.equals(me.getReturnType())) 
-                     reply = new MethodReturn(m, null);
-                  else {
-                     StringBuffer sb = new StringBuffer();
-                     for (String s: Marshalling.getDBusType(me.getGenericReturnType()))
-                        sb.append(s);
-                     Object[] nr = Marshalling.convertParameters(new Object[] { result }, new Type[] {me.getGenericReturnType()}, conn);
-                     
-                     reply = new MethodReturn(m, sb.toString(),nr);
-                  }
+                  if (me.isVoid()) 
+                     reply = new MethodReturn(conn.endian, null, m, null);
+                  else
+                     reply = new MethodReturn(conn.endian, null, m, me.getReturnSig(), me.convertReturn(result, conn));
                   conn.queueOutgoing(reply);
                }
             } catch (DBusExecutionException DBEe) {
                if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBEe);
                try {
-                  conn.queueOutgoing(new Error(m, DBEe)); 
+                  conn.queueOutgoing(new Error(conn.endian, null, m, DBEe)); 
                } catch (DBusException DBe) {}
             } catch (Throwable e) {
                if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
                try { 
-                  conn.queueOutgoing(new Error(m, new DBusExecutionException(MessageFormat.format(_("Error Executing Method {0}.{1}: {2}"), new Object[] { m.getInterface(), m.getName(), e.getMessage() })))); 
+                  conn.queueOutgoing(new Error(conn.endian, null, m, new DBusExecutionException(MessageFormat.format(_("Error Executing Method {0}.{1}: {2}"), new Object[] { m.getInterface(), m.getName(), e.getMessage() })))); 
                } catch (DBusException DBe) {}
             } 
          }
       });
    }
-   @SuppressWarnings({"unchecked","deprecation"})
+   /**
+    * Converts a signal to its real class once, for all of its handlers.
+    */
+   private class _realsignal
+   {
+      private final DBusSignal s;
+      private DBusSignal real = null;
+      private boolean done = false;
+      public _realsignal(DBusSignal s)
+      {
+         this.s = s;
+      }
+      /* Returns the converted signal, or null if it could not be converted. */
+      @SuppressWarnings("deprecation")
+      public synchronized DBusSignal get()
+      {
+         if (done) return real;
+         done = true;
+         try {
+            if (s instanceof DBusSignal.internalsig || s.getClass().equals(DBusSignal.class))
+               real = s.createReal(AbstractConnection.this);
+            else
+               real = s;
+         } catch (DBusException DBe) {
+            if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+            try {
+               queueOutgoing(new Error(endian, null, s, new DBusExecutionException("Error handling signal "+s.getInterface()+"."+s.getName()+": "+DBe.getMessage()))); 
+            } catch (DBusException DBe2) {}
+         }
+         return real;
+      }
+   }
    private void handleMessage(final DBusSignal s)
    {
       if (Debug.debug) Debug.print(Debug.DEBUG, "Handling incoming signal: "+s);
-      Vector<DBusSigHandler<? extends DBusSignal>> v = new Vector<DBusSigHandler<? extends DBusSignal>>();
-      synchronized(handledSignals) {
-         Vector<DBusSigHandler<? extends DBusSignal>> t;
-         t = handledSignals.get(new SignalTuple(s.getInterface(), s.getName(), null, null));
-         if (null != t) v.addAll(t);
-         t = handledSignals.get(new SignalTuple(s.getInterface(), s.getName(), s.getPath(), null));
-         if (null != t) v.addAll(t);
-         t = handledSignals.get(new SignalTuple(s.getInterface(), s.getName(), null, s.getSource()));
-         if (null != t) v.addAll(t);
-         t = handledSignals.get(new SignalTuple(s.getInterface(), s.getName(), s.getPath(), s.getSource()));
-         if (null != t) v.addAll(t);
-      }
-      if (0 == v.size()) return;
-      final AbstractConnection conn = this;
+      DBusSigHandler<? extends DBusSignal>[] v = handledSignals.get(s.getInterface(), s.getName(), s.getPath(), s.getSource());
+      if (null == v) return;
+      final _realsignal rs = new _realsignal(s);
       for (final DBusSigHandler<? extends DBusSignal> h: v) {
          if (Debug.debug) Debug.print(Debug.VERBOSE, "Adding Runnable for signal "+s+" with handler "+h);
-         addRunnable(new Runnable() { 
-            private boolean run = false;
-            public synchronized void run() 
+         addRunnable(h, new Runnable() { 
+            @SuppressWarnings("unchecked")
+            public void run() 
             {
-               if (run) return;
-               run = true;
-               try {
-                  DBusSignal rs;
-                  if (s instanceof DBusSignal.internalsig || s.getClass().equals(DBusSignal.class))
-                     rs = s.createReal(conn);
-                  else
-                     rs = s;
-                  ((DBusSigHandler<DBusSignal>)h).handle(rs); 
-               } catch (DBusException DBe) {
-                  if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
-                  try {
-                     conn.queueOutgoing(new Error(s, new DBusExecutionException("Error handling signal "+s.getInterface()+"."+s.getName()+": "+DBe.getMessage()))); 
-                  } catch (DBusException DBe2) {}
-               }
+               DBusSignal r = rs.get();
+               if (null != r) ((DBusSigHandler<DBusSignal>) h).handle(r); 
             }
          });
       }
@@ -865,110 +1107,138 @@ public abstract class AbstractConnection
    {
       if (Debug.debug) Debug.print(Debug.DEBUG, "Handling incoming error: "+err);
       MethodCall m = null;
-      if (null == pendingCalls) return;
-      synchronized (pendingCalls) {
-         if (pendingCalls.contains(err.getReplySerial()))
-            m = pendingCalls.remove(err.getReplySerial());
-      }
+      PendingCallMap calls = pendingCalls;
+      if (null == calls) return;
+      m = calls.remove(err.getReplySerial());
       if (null != m) {
+         timeouts.cancel(m);
          m.setReply(err);
-         CallbackHandler cbh = null;
-         DBusAsyncReply asr = null;
-         synchronized (pendingCallbacks) {
-            cbh = pendingCallbacks.remove(m);
-            if (Debug.debug) Debug.print(Debug.VERBOSE, cbh+" = pendingCallbacks.remove("+m+")");
-            asr = pendingCallbackReplys.remove(m);
-         }
-         // queue callback for execution
-         if (null != cbh) {
-            final CallbackHandler fcbh = cbh;
-            if (Debug.debug) Debug.print(Debug.VERBOSE, "Adding Error Runnable with callback handler "+fcbh);
-            addRunnable(new Runnable() { 
-               private boolean run = false;
-               public synchronized void run() 
-               {
-                  if (run) return;
-                  run = true;
-                  try {
-                     if (Debug.debug) Debug.print(Debug.VERBOSE, "Running Error Callback for "+err);
-                     DBusCallInfo info = new DBusCallInfo(err);
-                     synchronized (infomap) {
-                        infomap.put(Thread.currentThread(), info);
-                     }
-
-                     fcbh.handleError(err.getException());
-                     synchronized (infomap) {
-                        infomap.remove(Thread.currentThread());
-                     }
-
-                  } catch (Exception e) {
-                     if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
-                  }
-               }
-            });
-         }
- 
-		}
+      }
       else
          synchronized (pendingErrors) {
             pendingErrors.addLast(err); }
    }
-   @SuppressWarnings("unchecked")
    private void handleMessage(final MethodReturn mr)
    {
       if (Debug.debug) Debug.print(Debug.DEBUG, "Handling incoming method return: "+mr);
       MethodCall m = null;
-      if (null == pendingCalls) return;
-      synchronized (pendingCalls) {
-         if (pendingCalls.contains(mr.getReplySerial()))
-            m = pendingCalls.remove(mr.getReplySerial());
-      }
+      PendingCallMap calls = pendingCalls;
+      if (null == calls) return;
+      m = calls.remove(mr.getReplySerial());
       if (null != m) {
-         m.setReply(mr);
+         timeouts.cancel(m);
          mr.setCall(m);
-         CallbackHandler cbh = null;
-         DBusAsyncReply asr = null;
-         synchronized (pendingCallbacks) {
-            cbh = pendingCallbacks.remove(m);
-            if (Debug.debug) Debug.print(Debug.VERBOSE, cbh+" = pendingCallbacks.remove("+m+")");
-            asr = pendingCallbackReplys.remove(m);
-         }
-         // queue callback for execution
-         if (null != cbh) {
-            final CallbackHandler fcbh = cbh;
-            final DBusAsyncReply fasr = asr;
-            if (Debug.debug) Debug.print(Debug.VERBOSE, "Adding Runnable for method "+fasr.getMethod()+" with callback handler "+fcbh);
-            addRunnable(new Runnable() { 
-               private boolean run = false;
-               public synchronized void run() 
-               {
-                  if (run) return;
-                  run = true;
-                  try {
-                     if (Debug.debug) Debug.print(Debug.VERBOSE, "Running Callback for "+mr);
-                     DBusCallInfo info = new DBusCallInfo(mr);
-                     synchronized (infomap) {
-                        infomap.put(Thread.currentThread(), info);
-                     }
-
-                     fcbh.handle(RemoteInvocationHandler.convertRV(mr.getSig(), mr.getParameters(), fasr.getMethod(), fasr.getConnection()));
-                     synchronized (infomap) {
-                        infomap.remove(Thread.currentThread());
-                     }
-
-                  } catch (Exception e) {
-                     if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
-                  }
-               }
-            });
-         }
-         
+         m.setReply(mr);
       } else
          try {
-            queueOutgoing(new Error(mr, new DBusExecutionException(_("Spurious reply. No message with the given serial id was awaiting a reply.")))); 
+            queueOutgoing(new Error(endian, null, mr, new DBusExecutionException(_("Spurious reply. No message with the given serial id was awaiting a reply.")))); 
          } catch (DBusException DBe) {}
    }
+   /**
+    * Queue a callback to be run with the reply to an async call.
+    */
+   @SuppressWarnings("unchecked")
+   void queueCallback(final DBusAsyncReply asr, final CallbackHandler cbh)
+   {
+      if (Debug.debug) Debug.print(Debug.VERBOSE, "Adding Runnable for method "+asr.getMethod()+" with callback handler "+cbh);
+      addRunnable(new Runnable() { 
+         public void run() 
+         {
+            Message reply = asr.getReplyMessage();
+            try {
+               if (Debug.debug) Debug.print(Debug.VERBOSE, "Running Callback for "+reply);
+               DBusCallInfo info = new DBusCallInfo(reply);
+               infomap.set(info);
+               Object rv;
+               try {
+                  rv = asr.getReply();
+               } catch (DBusExecutionException DBEe) {
+                  cbh.handleError(DBEe);
+                  return;
+               }
+               cbh.handle(rv);
+            } catch (Exception e) {
+               if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
+            } finally {
+               infomap.remove();
+            }
+         }
+      });
+   }
+   /**
+    * Stop waiting for the reply to a call, and give it an error instead.
+    */
+   void cancelCall(MethodCall m)
+   {
+      PendingCallMap calls = pendingCalls;
+      if (null != calls) calls.remove(m.getSerial());
+      timeouts.cancel(m);
+      try {
+         m.setReply(new Error("org.freedesktop.DBus.Local", "org.freedesktop.DBus.Local.Cancelled", 0, "s", new Object[] { _("Cancelled") }));
+      } catch (DBusException DBe) {
+         if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+      }
+   }
+   /**
+    * Fail a call which has not had a reply in time, unless the reply
+    * has just arrived.
+    */
+   void expireCall(MethodCall m)
+   {
+      PendingCallMap calls = pendingCalls;
+      if (null == calls || null == calls.remove(m.getSerial())) return;
+      if (Debug.debug) Debug.print(Debug.DEBUG, "No reply in time for "+m);
+      try {
+         m.setReply(new Error("org.freedesktop.DBus.Local", "org.freedesktop.DBus.Error.NoReply", 0, "s", new Object[] { _("No reply within specified time") }));
+      } catch (DBusException DBe) {
+         if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+      }
+   }
    protected void sendMessage(Message m)
+   {
+      if (!prepareMessage(m)) return;
+      try {
+         transport.mout.writeMessage(m);
+      } catch (Exception e) {
+         sendFailed(m, e);
+      }
+   }
+   /* Write several messages, flushing as few times as the byte limit allows. */
+   private void sendMessages(Message[] ms, int n)
+   {
+      int start = 0;
+      for (int i = 0; i < n; i++) {
+         if (!prepareMessage(ms[i])) {
+            ms[i] = null;
+            continue;
+         }
+         try {
+            transport.mout.write(ms[i]);
+            if (transport.mout.getPendingBytes() >= maxbatchbytes) {
+               flushMessages(ms, start, i+1);
+               start = i+1;
+            }
+         } catch (Exception e) {
+            sendFailed(ms[i], e);
+            ms[i] = null;
+         }
+      }
+      flushMessages(ms, start, n);
+   }
+   private void flushMessages(Message[] ms, int start, int end)
+   {
+      try {
+         Transport t = transport;
+         if (null == t) throw new NotConnected(_("Disconnected"));
+         t.mout.flush();
+      } catch (Exception e) {
+         // we don't know which got through, so fail all of them
+         for (int i = start; i < end; i++)
+            if (null != ms[i]) sendFailed(ms[i], e);
+      }
+   }
+   /* Anything which must be done before a message is written. Returns false if it failed. */
+   private boolean prepareMessage(Message m)
    {
       try {
 			if (!connected) throw new NotConnected(_("Disconnected"));
@@ -979,45 +1249,51 @@ public abstract class AbstractConnection
             if (0 == (m.getFlags() & Message.Flags.NO_REPLY_EXPECTED))
                if (null == pendingCalls) 
                   ((MethodCall) m).setReply(new Error("org.freedesktop.DBus.Local", "org.freedesktop.DBus.Local.Disconnected", 0, "s", new Object[] { _("Disconnected") }));
-               else synchronized (pendingCalls) {
+               else {
                   pendingCalls.put(m.getSerial(),(MethodCall) m);
+                  timeouts.schedule((MethodCall) m, ((MethodCall) m).getTimeout());
                }
          }
-
-         transport.mout.writeMessage(m);
-         
+         return true;
       } catch (Exception e) {
-         if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
-         if (m instanceof MethodCall && e instanceof NotConnected) 
-            try {
-					((MethodCall) m).setReply(new Error("org.freedesktop.DBus.Local", "org.freedesktop.DBus.Local.Disconnected", 0, "s", new Object[] { _("Disconnected") }));
-            } catch (DBusException DBe) {}
-         if (m instanceof MethodCall && e instanceof DBusExecutionException) 
-            try {
-               ((MethodCall)m).setReply(new Error(m, e));
-            } catch (DBusException DBe) {}
-         else if (m instanceof MethodCall)
-            try {
-               if (Debug.debug) Debug.print(Debug.INFO, "Setting reply to "+m+" as an error");
-               ((MethodCall)m).setReply(new Error(m, new DBusExecutionException(_("Message Failed to Send: ")+e.getMessage())));
-            } catch (DBusException DBe) {}
-         else if (m instanceof MethodReturn)
-            try {
-               transport.mout.writeMessage(new Error(m, e));
-            } catch(IOException IOe) {
-               if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, IOe);            
-            } catch(DBusException IOe) {
-               if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);            
-            }
-         if (e instanceof IOException) disconnect();
+         sendFailed(m, e);
+         return false;
       }
    }
+   private void sendFailed(Message m, Exception e)
+   {
+      if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
+      if (m instanceof MethodCall && e instanceof NotConnected) 
+         try {
+					((MethodCall) m).setReply(new Error("org.freedesktop.DBus.Local", "org.freedesktop.DBus.Local.Disconnected", 0, "s", new Object[] { _("Disconnected") }));
+         } catch (DBusException DBe) {}
+      if (m instanceof MethodCall && e instanceof DBusExecutionException) 
+         try {
+            ((MethodCall)m).setReply(new Error(m, e));
+         } catch (DBusException DBe) {}
+      else if (m instanceof MethodCall)
+         try {
+            if (Debug.debug) Debug.print(Debug.INFO, "Setting reply to "+m+" as an error");
+            ((MethodCall)m).setReply(new Error(m, new DBusExecutionException(_("Message Failed to Send: ")+e.getMessage())));
+         } catch (DBusException DBe) {}
+      else if (m instanceof MethodReturn && null != transport)
+         try {
+            transport.mout.writeMessage(new Error(endian, null, m, e));
+         } catch(IOException IOe) {
+            if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, IOe);            
+         } catch(DBusException IOe) {
+            if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);            
+         }
+      if (e instanceof IOException && connected) disconnect();
+   }
    private Message readIncoming() throws DBusException 
    {
       if (!connected) throw new NotConnected(_("No transport present"));
       Message m = null;
       try {
          m = transport.min.readMessage();
+         // we never re-send received messages, so the raw header can be re-used
+         if (null != m) m.releaseHeader();
       } catch (IOException IOe) {
          throw new FatalDBusException(IOe.getMessage());
       }
@@ -0,0 +1,93 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides a pool of re-usable byte arrays in power-of-two size classes.
+ * Arrays handed out may be longer than requested, so callers must track
+ * the length they are using. Requests bigger than the largest class
+ * are allocated directly and not pooled.
+ */
+public class BufferPool
+{
+   private static final int MIN_SHIFT = 6;
+   private static final int MAX_SHIFT = 16;
+   private final byte[][][] free;
+   private final int[] count;
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   /**
+    * Create a pool.
+    * @param depth The maximum number of free arrays kept in each size class.
+    */
+   public BufferPool(int depth)
+   {
+      free = new byte[MAX_SHIFT-MIN_SHIFT+1][depth][];
+      count = new int[free.length];
+   }
+   private static int sizeclass(int size)
+   {
+      int c = 0;
+      while ((1 << (c+MIN_SHIFT)) < size) c++;
+      return c;
+   }
+   /**
+    * Get an array of at least size bytes. Its contents are undefined.
+    */
+   byte[] take(int size)
+   {
+      if (size > (1 << MAX_SHIFT)) {
+         misses.incrementAndGet();
+         return new byte[size];
+      }
+      int c = sizeclass(size);
+      byte[][] list = free[c];
+      synchronized (list) {
+         if (count[c] > 0) {
+            byte[] buf = list[--count[c]];
+            list[count[c]] = null;
+            hits.incrementAndGet();
+            return buf;
+         }
+      }
+      misses.incrementAndGet();
+      return new byte[1 << (c+MIN_SHIFT)];
+   }
+   /**
+    * Return an array to the pool. The caller must not use it afterwards.
+    * Arrays which were not allocated by the pool are ignored.
+    */
+   void give(byte[] buf)
+   {
+      if (null == buf || buf.length > (1 << MAX_SHIFT) || buf.length < (1 << MIN_SHIFT)) return;
+      int c = sizeclass(buf.length);
+      if (buf.length != (1 << (c+MIN_SHIFT))) return;
+      byte[][] list = free[c];
+      synchronized (list) {
+         if (count[c] < list.length)
+            list[count[c]++] = buf;
+      }
+   }
+   /**
+    * The number of requests served from a pooled array.
+    */
+   public long getHits() { return hits.get(); }
+   /**
+    * The number of requests which had to allocate a new array.
+    */
+   public long getMisses() { return misses.get(); }
+   public String toString()
+   {
+      return "BufferPool { hits="+hits.get()+", misses="+misses.get()+" }";
+   }
+}
@@ -11,8 +11,8 @@
 package org.freedesktop.dbus;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.lang.reflect.Field;
 import java.lang.reflect.Type;
 
@@ -22,7 +22,7 @@ import java.lang.reflect.Type;
  */
 abstract class Container
 {
-   private static Map<Type,Type[]> typecache = new HashMap<Type,Type[]>();
+   private static final ConcurrentMap<Type,Type[]> typecache = new ConcurrentHashMap<Type,Type[]>();
    static void putTypeCache(Type k, Type[] v)
    {
       typecache.put(k, v);
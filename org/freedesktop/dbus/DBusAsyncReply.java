@@ -16,6 +16,12 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.freedesktop.DBus.Error.NoReply;
 import org.freedesktop.dbus.exceptions.DBusException;
@@ -25,8 +31,14 @@ import cx.ath.matthew.debug.Debug;
 
 /**
  * A handle to an asynchronous method call.
+ * <p>
+ * This is a Future which is completed by the connection as soon as the
+ * reply arrives, so many calls can be outstanding without a thread
+ * waiting on each. Callbacks can be added to be run when the reply
+ * arrives, which allows replies to be chained into further calls.
+ * </p>
  */
-public class DBusAsyncReply<ReturnType>
+public class DBusAsyncReply<ReturnType> implements Future<ReturnType>
 {
    /**
     * Check if any of a set of asynchronous calls have had a reply.
@@ -42,8 +54,12 @@ public class DBusAsyncReply<ReturnType>
       return c;
    }
 
+   private Message reply = null;
+   private boolean converted = false;
+   private boolean cancelled = false;
    private ReturnType rval = null;
    private DBusExecutionException error = null;
+   private Vector<CallbackHandler<? super ReturnType>> callbacks = null;
    private MethodCall mc;
    private Method me;
    private AbstractConnection conn;
@@ -52,23 +68,40 @@ public class DBusAsyncReply<ReturnType>
       this.mc = mc;
       this.me = me;
       this.conn = conn;
+      mc.setAsyncReply(this);
+   }
+   /**
+    * Called by the MethodCall exactly once, when it gets its reply.
+    */
+   void setReply(Message m)
+   {
+      Vector<CallbackHandler<? super ReturnType>> cbs;
+      synchronized (this) {
+         if (null != reply) return;
+         reply = m;
+         cbs = callbacks;
+         callbacks = null;
+         notifyAll();
+      }
+      if (null != cbs)
+         for (CallbackHandler<? super ReturnType> cbh: cbs)
+            conn.queueCallback(this, cbh);
    }
    @SuppressWarnings("unchecked")
    private synchronized void checkReply()
    {
-      if (mc.hasReply()) {
-         Message m = mc.getReply();
-         if (m instanceof Error)
-            error = ((Error) m).getException();
-         else if (m instanceof MethodReturn) {
-            try {
-               rval = (ReturnType) RemoteInvocationHandler.convertRV(m.getSig(), m.getParameters(), me, conn);
-            } catch (DBusExecutionException DBEe) {
-               error = DBEe;
-            } catch (DBusException DBe) {
-               if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
-               error = new DBusExecutionException(DBe.getMessage());
-            }
+      if (null == reply || converted) return;
+      converted = true;
+      if (reply instanceof Error)
+         error = ((Error) reply).getException();
+      else if (reply instanceof MethodReturn) {
+         try {
+            rval = (ReturnType) RemoteInvocationHandler.convertRV(reply.getSig(), reply.getParameters(), me, conn);
+         } catch (DBusExecutionException DBEe) {
+            error = DBEe;
+         } catch (DBusException DBe) {
+            if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+            error = new DBusExecutionException(DBe.getMessage());
          }
       }
    }
@@ -79,9 +112,7 @@ public class DBusAsyncReply<ReturnType>
     */
    public boolean hasReply()
    {
-      if (null != rval || null != error) return true;
-      checkReply();
-      return null != rval || null != error;
+      return isDone();
    }
    
    /**
@@ -90,22 +121,102 @@ public class DBusAsyncReply<ReturnType>
     * @throws DBusExecutionException if the reply to the method was an error.
     * @throws NoReply if the method hasn't had a reply yet
     */
-   public ReturnType getReply() throws DBusExecutionException
+   public synchronized ReturnType getReply() throws DBusExecutionException
    {
-      if (null != rval) return rval;
-      else if (null != error) throw error;
+      if (null == reply) throw new NoReply(_("Async call has not had a reply"));
       checkReply();
-      if (null != rval) return rval;
-      else if (null != error) throw error;
-      else throw new NoReply(_("Async call has not had a reply"));
+      if (null != error) throw error;
+      return rval;
+   }
+
+   /**
+    * Run a callback when the reply arrives, or straight away if it
+    * already has. The callback is run on the connection's worker threads
+    * in the same way as those passed to callWithCallback.
+    * @param callback The callback handler.
+    */
+   public void addCallback(CallbackHandler<? super ReturnType> callback)
+   {
+      synchronized (this) {
+         if (null == reply) {
+            if (null == callbacks) callbacks = new Vector<CallbackHandler<? super ReturnType>>();
+            callbacks.add(callback);
+            return;
+         }
+      }
+      conn.queueCallback(this, callback);
+   }
+
+   /**
+    * Stop waiting for the reply. The call has already been sent, so this
+    * only means that any reply is ignored; callbacks are given an error.
+    * @param mayInterruptIfRunning ignored.
+    * @return false if the reply has already arrived.
+    */
+   public boolean cancel(boolean mayInterruptIfRunning)
+   {
+      synchronized (this) {
+         if (null != reply) return false;
+         cancelled = true;
+      }
+      conn.cancelCall(mc);
+      return true;
+   }
+
+   public synchronized boolean isCancelled()
+   {
+      return cancelled;
+   }
+
+   public synchronized boolean isDone()
+   {
+      return null != reply;
+   }
+
+   /**
+    * Wait for the reply.
+    * @return The return value from the method.
+    * @throws ExecutionException wrapping a DBusExecutionException if the
+    *         reply to the method was an error.
+    */
+   public synchronized ReturnType get() throws InterruptedException, ExecutionException
+   {
+      while (null == reply) wait();
+      return result();
+   }
+
+   /**
+    * Wait for the reply for at most the given time.
+    * @return The return value from the method.
+    * @throws ExecutionException wrapping a DBusExecutionException if the
+    *         reply to the method was an error.
+    * @throws TimeoutException if there was no reply in time.
+    */
+   public synchronized ReturnType get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+   {
+      long end = System.currentTimeMillis() + unit.toMillis(timeout);
+      while (null == reply) {
+         long left = end - System.currentTimeMillis();
+         if (left <= 0) throw new TimeoutException(_("Async call has not had a reply"));
+         wait(left);
+      }
+      return result();
+   }
+
+   private ReturnType result() throws ExecutionException
+   {
+      if (cancelled) throw new CancellationException();
+      checkReply();
+      if (null != error) throw new ExecutionException(error);
+      return rval;
    }
 
    public String toString()
    {
       return _("Waiting for: ")+mc;
    }
+   Message getReplyMessage() { return reply; }
    Method getMethod() { return me; }
    AbstractConnection getConnection() { return conn; }
    MethodCall getCall() { return mc; }
 }
-
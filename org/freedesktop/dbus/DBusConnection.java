@@ -166,7 +166,7 @@ public class DBusConnection extends AbstractConnection
                      "org.freedesktop.DBus.Local" , "org.freedesktop.DBus.Local.Disconnected", 0, "s", new Object[] { _("Disconnected") });
                if (null != pendingCalls) synchronized (pendingCalls) {
                   long[] set = pendingCalls.getKeys();
-                  for (long l: set) if (-1 != l) {
+                  for (long l: set) {
                      MethodCall m = pendingCalls.remove(l);
                      if (null != m)
                         m.setReply(err);
@@ -664,23 +664,16 @@ public class DBusConnection extends AbstractConnection
    protected <T extends DBusSignal> void removeSigHandler(DBusMatchRule rule, DBusSigHandler<T> handler) throws DBusException
    {
       
-      SignalTuple key = new SignalTuple(rule.getInterface(), rule.getMember(), rule.getObject(), rule.getSource());
       synchronized (handledSignals) {
-         Vector<DBusSigHandler<? extends DBusSignal>> v = handledSignals.get(key);
-         if (null != v) {
-            v.remove(handler);
-            if (0 == v.size()) {
-               handledSignals.remove(key);
-               try {
-                  _dbus.RemoveMatch(rule.toString());
-               } catch (NotConnected NC) {
-                  if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, NC);
-               } catch (DBusExecutionException DBEe) {
-                  if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBEe);
-						throw new DBusException(DBEe.getMessage());
-               }
+         if (handledSignals.remove(rule.getInterface(), rule.getMember(), rule.getObject(), rule.getSource(), handler))
+            try {
+               _dbus.RemoveMatch(rule.toString());
+            } catch (NotConnected NC) {
+               if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, NC);
+            } catch (DBusExecutionException DBEe) {
+               if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBEe);
+               throw new DBusException(DBEe.getMessage());
             }
-         } 
       }
    }
    /** 
@@ -731,16 +724,7 @@ public class DBusConnection extends AbstractConnection
          if (EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBEe);
          throw new DBusException(DBEe.getMessage());
       }
-      SignalTuple key = new SignalTuple(rule.getInterface(), rule.getMember(), rule.getObject(), rule.getSource());
-      synchronized (handledSignals) {
-         Vector<DBusSigHandler<? extends DBusSignal>> v = handledSignals.get(key);
-         if (null == v) {
-            v = new Vector<DBusSigHandler<? extends DBusSignal>>();
-            v.add(handler);
-            handledSignals.put(key, v);
-         } else
-            v.add(handler);
-      }
+      handledSignals.add(rule.getInterface(), rule.getMember(), rule.getObject(), rule.getSource(), handler);
    }
    /** 
     * Disconnect from the Bus.
@@ -759,7 +743,7 @@ public class DBusConnection extends AbstractConnection
                         "org.freedesktop.DBus.Local" , "org.freedesktop.DBus.Local.Disconnected", 0, "s", new Object[] { _("Disconnected") });
                   synchronized (pendingCalls) {
                      long[] set = pendingCalls.getKeys();
-                     for (long l: set) if (-1 != l) {
+                     for (long l: set) {
                         MethodCall m = pendingCalls.remove(l);
                         if (null != m)
                            m.setReply(err);
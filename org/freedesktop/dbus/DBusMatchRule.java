@@ -15,7 +15,8 @@ import static org.freedesktop.dbus.Gettext._;
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.exceptions.DBusExecutionException;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class DBusMatchRule
 {
@@ -25,8 +26,8 @@ public class DBusMatchRule
    private String member;
    private String object;
    private String source;
-	private static HashMap<String, Class<? extends DBusSignal>> signalTypeMap = 
-					new HashMap<String, Class<? extends DBusSignal>>();
+	private static final ConcurrentMap<String, Class<? extends DBusSignal>> signalTypeMap = 
+					new ConcurrentHashMap<String, Class<? extends DBusSignal>>();
 	static Class<? extends DBusSignal> getCachedSignalType(String type)
 	{
 		return signalTypeMap.get(type);
@@ -17,9 +17,9 @@ import java.lang.reflect.GenericDeclaration;
 import java.lang.reflect.Type;
 import java.lang.reflect.TypeVariable;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.exceptions.MessageFormatException;
@@ -31,7 +31,11 @@ public class DBusSignal extends Message
    DBusSignal() { }
    public DBusSignal(String source, String path, String iface, String member, String sig, Object... args) throws DBusException
    {
-      super(Message.Endian.BIG, Message.MessageType.SIGNAL, (byte) 0);
+      this(Message.getDefaultEndianness(), source, path, iface, member, sig, args);
+   }
+   public DBusSignal(byte endian, String source, String path, String iface, String member, String sig, Object... args) throws DBusException
+   {
+      super(endian, Message.MessageType.SIGNAL, (byte) 0);
 
       if (null == path || null == member || null == iface)
          throw new MessageFormatException(_("Must specify object path, interface and signal name to Signals."));
@@ -55,14 +59,13 @@ public class DBusSignal extends Message
          setArgs(args);
       }
 
-      blen = new byte[4];
-      appendBytes(blen);
-      append("ua(yv)", ++serial, hargs.toArray());
+      blen = reserveLength();
+      appendHeader("ua(yv)", ++serial, hargs.toArray());
       pad((byte)8);
 
       long c = bytecounter;
       if (null != sig) append(sig, args);
-      marshallint(bytecounter-c, blen, 0, 4);
+      setLength(blen, bytecounter-c);
       bodydone = true;
    }
    static class internalsig extends DBusSignal
@@ -72,14 +75,14 @@ public class DBusSignal extends Message
          super(source, objectpath, type, name, sig, parameters, serial);
       }
    }
-   private static Map<Class<? extends DBusSignal>, Type[]> typeCache = new HashMap<Class<? extends DBusSignal>, Type[]>();
-   private static Map<String, Class<? extends DBusSignal>> classCache = new HashMap<String, Class<? extends DBusSignal>>();
-   private static Map<Class<? extends DBusSignal>, Constructor<? extends DBusSignal>> conCache = new HashMap<Class<? extends DBusSignal>, Constructor<? extends DBusSignal>>();
-   private static Map<String, String> signames = new HashMap<String, String>();
-   private static Map<String, String> intnames = new HashMap<String, String>();
+   private static final ConcurrentMap<Class<? extends DBusSignal>, Type[]> typeCache = new ConcurrentHashMap<Class<? extends DBusSignal>, Type[]>();
+   private static final ConcurrentMap<String, Class<? extends DBusSignal>> classCache = new ConcurrentHashMap<String, Class<? extends DBusSignal>>();
+   private static final ConcurrentMap<Class<? extends DBusSignal>, Constructor<? extends DBusSignal>> conCache = new ConcurrentHashMap<Class<? extends DBusSignal>, Constructor<? extends DBusSignal>>();
+   private static final ConcurrentMap<String, String> signames = new ConcurrentHashMap<String, String>();
+   private static final ConcurrentMap<String, String> intnames = new ConcurrentHashMap<String, String>();
    private Class<? extends DBusSignal> c;
    private boolean bodydone = false;
-   private byte[] blen;
+   private int blen;
 
    static void addInterfaceMap(String java, String dbus)
    {
@@ -108,8 +111,9 @@ public class DBusSignal extends Message
    @SuppressWarnings("unchecked")
    private static Class<? extends DBusSignal> createSignalClass(String intname, String signame) throws DBusException
    {
-		String name = intname+'$'+signame;
-      Class<? extends DBusSignal> c = classCache.get(name);
+		String key = intname+'$'+signame;
+		String name = key;
+      Class<? extends DBusSignal> c = classCache.get(key);
 		if (null == c) c = DBusMatchRule.getCachedSignalType(name);
 		if (null != c) return c;
       do {
@@ -120,7 +124,7 @@ public class DBusSignal extends Message
       } while (null == c && name.matches(".*\\..*"));
 		if (null == c) 
 			throw new DBusException(_("Could not create class from signal ")+intname+'.'+signame);
-		classCache.put(name, c);
+		classCache.put(key, c);
       return c;
    }
    @SuppressWarnings("unchecked")
@@ -162,8 +166,8 @@ public class DBusSignal extends Message
             s = (DBusSignal) con.newInstance(params);
          }
          s.headers = headers;
-         s.wiredata = wiredata;
-         s.bytecounter = wiredata.length;
+         s.big = big;
+         s.setWireData(getWireData());
          return s;
       } catch (Exception e) { 
          if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
@@ -180,7 +184,7 @@ public class DBusSignal extends Message
    @SuppressWarnings("unchecked")
    protected DBusSignal(String objectpath, Object... args) throws DBusException
    {
-      super(Message.Endian.BIG, Message.MessageType.SIGNAL, (byte) 0);
+      super(Message.getDefaultEndianness(), Message.MessageType.SIGNAL, (byte) 0);
 
       if (!objectpath.matches(AbstractConnection.OBJECT_REGEX)) throw new DBusException(_("Invalid object path: ")+objectpath);
 
@@ -237,9 +241,8 @@ public class DBusSignal extends Message
          }
       }
 
-      blen = new byte[4];
-      appendBytes(blen);
-      append("ua(yv)", ++serial, hargs.toArray());
+      blen = reserveLength();
+      appendHeader("ua(yv)", ++serial, hargs.toArray());
       pad((byte)8);
    }
    void appendbody(AbstractConnection conn) throws DBusException
@@ -253,7 +256,7 @@ public class DBusSignal extends Message
 
       long c = bytecounter;
       if (null != args && 0 < args.length) append(sig, args);
-      marshallint(bytecounter-c, blen, 0, 4);
+      setLength(blen, bytecounter-c);
       bodydone = true;
    }
 }
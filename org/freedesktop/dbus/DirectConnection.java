@@ -220,29 +220,11 @@ public class DirectConnection extends AbstractConnection
    }
    protected <T extends DBusSignal> void removeSigHandler(DBusMatchRule rule, DBusSigHandler<T> handler) throws DBusException
    {
-      SignalTuple key = new SignalTuple(rule.getInterface(), rule.getMember(), rule.getObject(), rule.getSource());
-      synchronized (handledSignals) {
-         Vector<DBusSigHandler<? extends DBusSignal>> v = handledSignals.get(key);
-         if (null != v) {
-            v.remove(handler);
-            if (0 == v.size()) {
-               handledSignals.remove(key);
-            }
-         } 
-      }
+      handledSignals.remove(rule.getInterface(), rule.getMember(), rule.getObject(), rule.getSource(), handler);
    }
    protected <T extends DBusSignal> void addSigHandler(DBusMatchRule rule, DBusSigHandler<T> handler) throws DBusException
    {
-      SignalTuple key = new SignalTuple(rule.getInterface(), rule.getMember(), rule.getObject(), rule.getSource());
-      synchronized (handledSignals) {
-         Vector<DBusSigHandler<? extends DBusSignal>> v = handledSignals.get(key);
-         if (null == v) {
-            v = new Vector<DBusSigHandler<? extends DBusSignal>>();
-            v.add(handler);
-            handledSignals.put(key, v);
-         } else
-            v.add(handler);
-      }
+      handledSignals.add(rule.getInterface(), rule.getMember(), rule.getObject(), rule.getSource(), handler);
    }
    DBusInterface getExportedObject(String source, String path) throws DBusException
    {
@@ -14,13 +14,15 @@ import cx.ath.matthew.debug.Debug;
 
 /**
  * Provides a Message queue which doesn't allocate objects
- * on insertion/removal. */
+ * on insertion/removal. It also keeps count of the marshalled
+ * size of the messages in it. */
 class EfficientQueue
 {
    private Message[] mv;
    private int start;
    private int end;
    private int init_size;
+   private long bytes;
    public EfficientQueue(int initial_size)
    {
       init_size = initial_size;
@@ -68,12 +70,14 @@ class EfficientQueue
       mv = new Message[init_size];
       start = 0;
       end = 0;
+      bytes = 0;
    }
    public void add(Message m)
    {
       if (Debug.debug) Debug.print(Debug.DEBUG, "Enqueueing Message "+m);
       // put this at the end
       mv[end] = m;
+      bytes += m.bytecounter;
       // move the end
       if (end == (mv.length-1)) end = 0; else end++;
       // if we are out of space, grow.
@@ -89,14 +93,43 @@ class EfficientQueue
       // set it as unused
       mv[pos] = null;
       if (start == (mv.length-1)) start = 0; else start++;
+      bytes -= m.bytecounter;
       if (Debug.debug) Debug.print(Debug.DEBUG, "Dequeueing "+m);
       return m;
    }
+   /**
+    * Remove the signal nearest the front of the queue.
+    * @return The signal, or null if there are no signals queued.
+    */
+   public Message removeSignal()
+   {
+      int mask = mv.length;
+      for (int i = start; i != end; i = (i+1) % mask)
+         if (mv[i] instanceof DBusSignal) {
+            Message m = mv[i];
+            // close the gap by moving everything behind it forward one
+            for (int j = i, k = (i+1) % mask; k != end; j = k, k = (k+1) % mask)
+               mv[j] = mv[k];
+            end = (end+mask-1) % mask;
+            mv[end] = null;
+            bytes -= m.bytecounter;
+            if (Debug.debug) Debug.print(Debug.DEBUG, "Dropping "+m);
+            return m;
+         }
+      return null;
+   }
    public boolean isEmpty()
    {
       // check if find succeeds
       return start == end;
    }   
+   /**
+    * Returns the total marshalled size of the queued messages.
+    */
+   public long bytes()
+   {
+      return bytes;
+   }
    public int size()
    {
       if (end >= start)
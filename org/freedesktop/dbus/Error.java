@@ -33,7 +33,11 @@ public class Error extends Message
    }
    public Error(String source, String dest, String errorName, long replyserial, String sig, Object... args) throws DBusException
    {
-      super(Message.Endian.BIG, Message.MessageType.ERROR, (byte) 0);
+      this(Message.getDefaultEndianness(), source, dest, errorName, replyserial, sig, args);
+   }
+   public Error(byte endian, String source, String dest, String errorName, long replyserial, String sig, Object... args) throws DBusException
+   {
+      super(endian, Message.MessageType.ERROR, (byte) 0);
 
       if (null == errorName)
          throw new MessageFormatException(_("Must specify error name to Errors."));
@@ -60,18 +64,21 @@ public class Error extends Message
          setArgs(args);
       }
       
-      byte[] blen = new byte[4];
-      appendBytes(blen);
-      append("ua(yv)", serial, hargs.toArray());
+      int blen = reserveLength();
+      appendHeader("ua(yv)", serial, hargs.toArray());
       pad((byte)8);
 
       long c = bytecounter;
       if (null != sig) append(sig, args);
-      marshallint(bytecounter-c, blen, 0, 4);
+      setLength(blen, bytecounter-c);
    }
    public Error(String source, Message m, Throwable e)  throws DBusException
    {
-      this(source, m.getSource(), AbstractConnection.dollar_pattern.matcher(e.getClass().getName()).replaceAll("."), m.getSerial(), "s", e.getMessage());
+      this(Message.getDefaultEndianness(), source, m, e);
+   }
+   public Error(byte endian, String source, Message m, Throwable e)  throws DBusException
+   {
+      this(endian, source, m.getSource(), AbstractConnection.dollar_pattern.matcher(e.getClass().getName()).replaceAll("."), m.getSerial(), "s", e.getMessage());
    }
    public Error(Message m, Throwable e)  throws DBusException
    {
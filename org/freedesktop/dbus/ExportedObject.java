@@ -138,7 +138,8 @@ class ExportedObject
          }
       return m;
    }
-   Map<MethodTuple,Method> methods;
+   /* member name => signature => invoker */
+   Map<String,Map<String,MethodInvoker>> methods;
    Reference<DBusInterface> object;
    String introspectiondata;
    public ExportedObject(DBusInterface object, boolean weakreferences) throws DBusException
@@ -148,7 +149,15 @@ class ExportedObject
       else
          this.object = new StrongReference<DBusInterface>(object);
       introspectiondata = "";
-      methods = getExportedMethods(object.getClass());
+      methods = new HashMap<String,Map<String,MethodInvoker>>();
+      for (Map.Entry<MethodTuple,Method> e: getExportedMethods(object.getClass()).entrySet()) {
+         Map<String,MethodInvoker> sigs = methods.get(e.getKey().name);
+         if (null == sigs) {
+            sigs = new HashMap<String,MethodInvoker>();
+            methods.put(e.getKey().name, sigs);
+         }
+         sigs.put(e.getKey().sig, new MethodInvoker(e.getValue()));
+      }
       introspectiondata += 
          " <interface name=\"org.freedesktop.DBus.Introspectable\">\n"+
          "  <method name=\"Introspect\">\n"+
@@ -161,6 +170,16 @@ class ExportedObject
          "  </method>\n"+
          " </interface>\n";
    }
+   /**
+    * Find the method to call.
+    * @return The invoker, or null if there is no such method.
+    */
+   MethodInvoker getMethod(String name, String sig)
+   {
+      Map<String,MethodInvoker> sigs = methods.get(name);
+      if (null == sigs) return null;
+      return sigs.get(null == sig ? "" : sig);
+   }
 }
 
 
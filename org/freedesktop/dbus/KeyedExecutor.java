@@ -0,0 +1,118 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import cx.ath.matthew.debug.Debug;
+
+/**
+ * Runs tasks on an Executor so that tasks with the same key run one at a
+ * time in the order they were queued, while tasks with different keys
+ * run in parallel. Keys are spread over several locks so queueing tasks
+ * for different keys does not contend.
+ */
+class KeyedExecutor
+{
+   private static final int STRIPES = 16;
+
+   private class Drain implements Runnable
+   {
+      private final Object key;
+      private final Map<Object,LinkedList<Runnable>> queues;
+      private final Runnable task;
+      Drain(Object key, Map<Object,LinkedList<Runnable>> queues, Runnable task)
+      {
+         this.key = key;
+         this.queues = queues;
+         this.task = task;
+      }
+      public void run()
+      {
+         try {
+            task.run();
+         } finally {
+            Runnable next;
+            synchronized (queues) {
+               LinkedList<Runnable> q = queues.get(key);
+               if (q.isEmpty()) {
+                  queues.remove(key);
+                  next = null;
+               } else
+                  next = q.removeFirst();
+            }
+            // requeue rather than loop so other keys get a fair share of threads
+            if (null != next) try {
+               submit(key, queues, next);
+            } catch (RejectedExecutionException REe) {
+               if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, REe);
+            }
+         }
+      }
+   }
+
+   private final List<Map<Object,LinkedList<Runnable>>> stripes;
+   private volatile Executor executor;
+   public KeyedExecutor(Executor executor)
+   {
+      this.executor = executor;
+      stripes = new ArrayList<Map<Object,LinkedList<Runnable>>>(STRIPES);
+      for (int i = 0; i < STRIPES; i++)
+         stripes.add(new HashMap<Object,LinkedList<Runnable>>());
+   }
+   /**
+    * Change the Executor tasks are run on. Tasks already handed to the
+    * old Executor still run there.
+    */
+   public void setExecutor(Executor executor)
+   {
+      this.executor = executor;
+   }
+   /**
+    * Run a task after all the tasks already queued with the same key.
+    * @throws RejectedExecutionException If the Executor will not accept it.
+    */
+   public void execute(Object key, Runnable r)
+   {
+      int h = key.hashCode();
+      h ^= (h >>> 16);
+      Map<Object,LinkedList<Runnable>> queues = stripes.get(h & (STRIPES-1));
+      synchronized (queues) {
+         LinkedList<Runnable> q = queues.get(key);
+         if (null != q) {
+            q.addLast(r);
+            return;
+         }
+         queues.put(key, new LinkedList<Runnable>());
+      }
+      submit(key, queues, r);
+   }
+   private void submit(Object key, Map<Object,LinkedList<Runnable>> queues, Runnable r)
+   {
+      try {
+         executor.execute(new Drain(key, queues, r));
+      } catch (RejectedExecutionException REe) {
+         // nothing will run the rest of this key's queue, so drop it
+         LinkedList<Runnable> q;
+         synchronized (queues) {
+            q = queues.remove(key);
+         }
+         if (Debug.debug && null != q && !q.isEmpty()) Debug.print(Debug.WARN, "Dropping "+q.size()+" queued tasks for "+key);
+         throw REe;
+      }
+   }
+}
@@ -17,15 +17,17 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.GenericArrayType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.lang.reflect.TypeVariable;
 import java.text.MessageFormat;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.types.DBusListType;
@@ -39,7 +41,7 @@ import cx.ath.matthew.debug.Debug;
  */
 public class Marshalling
 {
-   private static Map<Type, String[]> typeCache = new HashMap<Type, String[]>();
+   private static final ConcurrentMap<Type, String[]> typeCache = new ConcurrentHashMap<Type, String[]>();
    /**
     * Will return the DBus type corresponding to the given Java type.
     * Note, container type should have their ParameterizedType not their
@@ -85,27 +87,20 @@ public class Marshalling
    {
       return recursiveGetDBusType(c, basic, 0);
    }
-   private static StringBuffer[] out = new StringBuffer[10];
    @SuppressWarnings("unchecked")
    public static String[] recursiveGetDBusType(Type c, boolean basic, int level) throws DBusException
    {
-      if (out.length <= level) {
-         StringBuffer[] newout = new StringBuffer[out.length];
-         System.arraycopy(out, 0, newout, 0, out.length);
-         out = newout;
-      }
-      if (null == out[level]) out[level] = new StringBuffer();
-      else out[level].delete(0, out[level].length());      
+      StringBuffer out = new StringBuffer();
 
       if (basic && !(c instanceof Class))
          throw new DBusException(c+_(" is not a basic type"));
 
-      if (c instanceof TypeVariable) out[level].append((char) Message.ArgumentType.VARIANT);
+      if (c instanceof TypeVariable) out.append((char) Message.ArgumentType.VARIANT);
       else if (c instanceof GenericArrayType) {
-         out[level].append((char) Message.ArgumentType.ARRAY);
+         out.append((char) Message.ArgumentType.ARRAY);
          String[] s = recursiveGetDBusType(((GenericArrayType) c).getGenericComponentType(), false, level+1);
          if (s.length != 1) throw new DBusException(_("Multi-valued array types not permitted"));
-         out[level].append(s[0]);
+         out.append(s[0]);
       } else if ((c instanceof Class && 
                DBusSerializable.class.isAssignableFrom((Class<? extends Object>) c)) ||
             (c instanceof ParameterizedType &&
@@ -135,38 +130,38 @@ public class Marshalling
       else if (c instanceof ParameterizedType) {
          ParameterizedType p = (ParameterizedType) c;
          if (p.getRawType().equals(Map.class)) {
-            out[level].append("a{");
+            out.append("a{");
             Type[] t = p.getActualTypeArguments();
             try {
                String[] s = recursiveGetDBusType(t[0], true, level+1);
                if (s.length != 1) throw new DBusException(_("Multi-valued array types not permitted"));
-               out[level].append(s[0]);
+               out.append(s[0]);
                s = recursiveGetDBusType(t[1], false, level+1);
                if (s.length != 1) throw new DBusException(_("Multi-valued array types not permitted"));
-               out[level].append(s[0]);
+               out.append(s[0]);
             } catch (ArrayIndexOutOfBoundsException AIOOBe) {
                if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, AIOOBe);
                throw new DBusException(_("Map must have 2 parameters"));
             }
-            out[level].append('}');
+            out.append('}');
          }
          else if (List.class.isAssignableFrom((Class<? extends Object>) p.getRawType())) {
             for (Type t: p.getActualTypeArguments()) {
                if (Type.class.equals(t)) 
-                  out[level].append((char) Message.ArgumentType.SIGNATURE);
+                  out.append((char) Message.ArgumentType.SIGNATURE);
                else {
                   String[] s = recursiveGetDBusType(t, false, level+1);
                   if (s.length != 1) throw new DBusException(_("Multi-valued array types not permitted"));
-                  out[level].append((char) Message.ArgumentType.ARRAY);
-                  out[level].append(s[0]);
+                  out.append((char) Message.ArgumentType.ARRAY);
+                  out.append(s[0]);
                }
             }
          } 
          else if (p.getRawType().equals(Variant.class)) {
-            out[level].append((char) Message.ArgumentType.VARIANT);
+            out.append((char) Message.ArgumentType.VARIANT);
          }
          else if (DBusInterface.class.isAssignableFrom((Class<? extends Object>) p.getRawType())) {
-            out[level].append((char) Message.ArgumentType.OBJECT_PATH);
+            out.append((char) Message.ArgumentType.OBJECT_PATH);
          }
          else if (Tuple.class.isAssignableFrom((Class<? extends Object>) p.getRawType())) {
             Type[] ts = p.getActualTypeArguments();
@@ -180,46 +175,46 @@ public class Marshalling
             throw new DBusException(_("Exporting non-exportable parameterized type ")+c);
       }
       
-      else if (c.equals(Byte.class)) out[level].append((char) Message.ArgumentType.BYTE);
-      else if (c.equals(Byte.TYPE)) out[level].append((char) Message.ArgumentType.BYTE);
-      else if (c.equals(Boolean.class)) out[level].append((char) Message.ArgumentType.BOOLEAN);
-      else if (c.equals(Boolean.TYPE)) out[level].append((char) Message.ArgumentType.BOOLEAN);
-      else if (c.equals(Short.class)) out[level].append((char) Message.ArgumentType.INT16);
-      else if (c.equals(Short.TYPE)) out[level].append((char) Message.ArgumentType.INT16);
-      else if (c.equals(UInt16.class)) out[level].append((char) Message.ArgumentType.UINT16);
-      else if (c.equals(Integer.class)) out[level].append((char) Message.ArgumentType.INT32);
-      else if (c.equals(Integer.TYPE)) out[level].append((char) Message.ArgumentType.INT32);
-      else if (c.equals(UInt32.class)) out[level].append((char) Message.ArgumentType.UINT32);
-      else if (c.equals(Long.class)) out[level].append((char) Message.ArgumentType.INT64);
-      else if (c.equals(Long.TYPE)) out[level].append((char) Message.ArgumentType.INT64);
-      else if (c.equals(UInt64.class)) out[level].append((char) Message.ArgumentType.UINT64);
-      else if (c.equals(Double.class)) out[level].append((char) Message.ArgumentType.DOUBLE);
-      else if (c.equals(Double.TYPE)) out[level].append((char) Message.ArgumentType.DOUBLE);
-      else if (c.equals(Float.class) && AbstractConnection.FLOAT_SUPPORT) out[level].append((char) Message.ArgumentType.FLOAT);
-      else if (c.equals(Float.class)) out[level].append((char) Message.ArgumentType.DOUBLE);
-      else if (c.equals(Float.TYPE) && AbstractConnection.FLOAT_SUPPORT) out[level].append((char) Message.ArgumentType.FLOAT);
-      else if (c.equals(Float.TYPE)) out[level].append((char) Message.ArgumentType.DOUBLE);
-      else if (c.equals(String.class)) out[level].append((char) Message.ArgumentType.STRING);
-      else if (c.equals(Variant.class)) out[level].append((char) Message.ArgumentType.VARIANT);
+      else if (c.equals(Byte.class)) out.append((char) Message.ArgumentType.BYTE);
+      else if (c.equals(Byte.TYPE)) out.append((char) Message.ArgumentType.BYTE);
+      else if (c.equals(Boolean.class)) out.append((char) Message.ArgumentType.BOOLEAN);
+      else if (c.equals(Boolean.TYPE)) out.append((char) Message.ArgumentType.BOOLEAN);
+      else if (c.equals(Short.class)) out.append((char) Message.ArgumentType.INT16);
+      else if (c.equals(Short.TYPE)) out.append((char) Message.ArgumentType.INT16);
+      else if (c.equals(UInt16.class)) out.append((char) Message.ArgumentType.UINT16);
+      else if (c.equals(Integer.class)) out.append((char) Message.ArgumentType.INT32);
+      else if (c.equals(Integer.TYPE)) out.append((char) Message.ArgumentType.INT32);
+      else if (c.equals(UInt32.class)) out.append((char) Message.ArgumentType.UINT32);
+      else if (c.equals(Long.class)) out.append((char) Message.ArgumentType.INT64);
+      else if (c.equals(Long.TYPE)) out.append((char) Message.ArgumentType.INT64);
+      else if (c.equals(UInt64.class)) out.append((char) Message.ArgumentType.UINT64);
+      else if (c.equals(Double.class)) out.append((char) Message.ArgumentType.DOUBLE);
+      else if (c.equals(Double.TYPE)) out.append((char) Message.ArgumentType.DOUBLE);
+      else if (c.equals(Float.class) && AbstractConnection.FLOAT_SUPPORT) out.append((char) Message.ArgumentType.FLOAT);
+      else if (c.equals(Float.class)) out.append((char) Message.ArgumentType.DOUBLE);
+      else if (c.equals(Float.TYPE) && AbstractConnection.FLOAT_SUPPORT) out.append((char) Message.ArgumentType.FLOAT);
+      else if (c.equals(Float.TYPE)) out.append((char) Message.ArgumentType.DOUBLE);
+      else if (c.equals(String.class)) out.append((char) Message.ArgumentType.STRING);
+      else if (c.equals(Variant.class)) out.append((char) Message.ArgumentType.VARIANT);
       else if (c instanceof Class && 
-            DBusInterface.class.isAssignableFrom((Class<? extends Object>) c)) out[level].append((char) Message.ArgumentType.OBJECT_PATH);
+            DBusInterface.class.isAssignableFrom((Class<? extends Object>) c)) out.append((char) Message.ArgumentType.OBJECT_PATH);
       else if (c instanceof Class && 
-            Path.class.equals((Class<? extends Object>) c)) out[level].append((char) Message.ArgumentType.OBJECT_PATH);
+            Path.class.equals((Class<? extends Object>) c)) out.append((char) Message.ArgumentType.OBJECT_PATH);
       else if (c instanceof Class && 
-            ObjectPath.class.equals((Class<? extends Object>) c)) out[level].append((char) Message.ArgumentType.OBJECT_PATH);
+            ObjectPath.class.equals((Class<? extends Object>) c)) out.append((char) Message.ArgumentType.OBJECT_PATH);
       else if (c instanceof Class && 
             ((Class<? extends Object>) c).isArray()) {
          if (Type.class.equals(((Class<? extends Object>) c).getComponentType()))
-            out[level].append((char) Message.ArgumentType.SIGNATURE);
+            out.append((char) Message.ArgumentType.SIGNATURE);
          else {
-            out[level].append((char) Message.ArgumentType.ARRAY);
+            out.append((char) Message.ArgumentType.ARRAY);
             String[] s = recursiveGetDBusType(((Class<? extends Object>) c).getComponentType(), false, level+1);
             if (s.length != 1) throw new DBusException(_("Multi-valued array types not permitted"));
-            out[level].append(s[0]);
+            out.append(s[0]);
          }
       } else if (c instanceof Class && 
             Struct.class.isAssignableFrom((Class<? extends Object>) c)) {
-         out[level].append((char) Message.ArgumentType.STRUCT1);
+         out.append((char) Message.ArgumentType.STRUCT1);
          Type[] ts = Container.getTypeCache(c);
          if (null == ts) {
             Field[] fs = ((Class<? extends Object>) c).getDeclaredFields();
@@ -235,15 +230,15 @@ public class Marshalling
          for (Type t: ts)
             if (t != null)
                for (String s: recursiveGetDBusType(t, false, level+1))
-                  out[level].append(s);
-         out[level].append(')');
+                  out.append(s);
+         out.append(')');
       } else {
          throw new DBusException(_("Exporting non-exportable type ")+c);
       }
 
-      if (Debug.debug) Debug.print(Debug.VERBOSE, "Converted Java type: "+c+" to D-Bus Type: "+out[level]);
+      if (Debug.debug) Debug.print(Debug.VERBOSE, "Converted Java type: "+c+" to D-Bus Type: "+out);
 
-      return new String[] { out[level].toString() };
+      return new String[] { out.toString() };
    }
 
    /**
@@ -343,6 +338,38 @@ public class Marshalling
          throw new DBusException(_("Failed to parse DBus type signature: ")+dbus);
       }
    }
+   /**
+    * Whether convertParameters may change an argument of the given type.
+    * Arguments can only need converting if they might be a Tuple,
+    * DBusSerializable, DBusInterface or unwrapped Variant.
+    */
+   @SuppressWarnings("unchecked")
+   static boolean needsConversion(Type t)
+   {
+      if (!(t instanceof Class)) return true;
+      Class<? extends Object> c = (Class<? extends Object>) t;
+      if (c.isPrimitive()) return false;
+      return !Modifier.isFinal(c.getModifiers())
+         || Tuple.class.isAssignableFrom(c)
+         || DBusSerializable.class.isAssignableFrom(c)
+         || DBusInterface.class.isAssignableFrom(c);
+   }
+   /**
+    * Whether deSerializeParameters may change an argument of the given type.
+    * Basic types other than floats are demarshalled directly as the
+    * right Java type.
+    */
+   static boolean needsDeSerialization(Type t)
+   {
+      if (!(t instanceof Class)) return true;
+      if (Float.class.equals(t) || Float.TYPE.equals(t)) return true;
+      if (((Class) t).isPrimitive()) return false;
+      return !(String.class.equals(t) || Boolean.class.equals(t)
+            || Byte.class.equals(t) || Short.class.equals(t)
+            || Integer.class.equals(t) || Long.class.equals(t)
+            || Double.class.equals(t) || UInt16.class.equals(t)
+            || UInt32.class.equals(t) || UInt64.class.equals(t));
+   }
    /**
     * Recursively converts types for serialization onto DBus.
     * @param parameters The parameters to convert.
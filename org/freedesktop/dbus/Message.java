@@ -15,6 +15,8 @@ import static org.freedesktop.dbus.Gettext._;
 import java.lang.reflect.Array;
 import java.lang.reflect.Type;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.text.MessageFormat;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -127,10 +129,36 @@ public class Message
             new byte[6],
             new byte[7] };
    }
-   /** Steps to increment the buffer array. */
-   private static final int BUFFERINCREMENT = 20;
+   /** Initial size of the buffer messages are marshalled into. */
+   private static final int ENCODE_INITIAL_SIZE = 256;
+   /** Number of free buffers kept for each size class of the encode pool. */
+   private static final int POOL_DEPTH = 32;
+   /** Wire data of a message which has been populated but not re-marshalled. */
+   private static final byte[][] NO_WIREDATA = new byte[0][];
+   private static final BufferPool pool = new BufferPool(POOL_DEPTH);
+   /** Number of slots in the header string cache. */
+   private static final int HEADER_CACHE_SIZE = 1024;
+   private static final StringCache headerstrings = new StringCache(HEADER_CACHE_SIZE);
+   private static final byte NATIVE_ENDIAN =
+      ByteOrder.BIG_ENDIAN.equals(ByteOrder.nativeOrder()) ? Endian.BIG : Endian.LITTLE;
+   /**
+    * Returns the pool from which buffers are taken when marshalling messages.
+    */
+   public static BufferPool getBufferPool()
+   {
+      return pool;
+   }
+   /**
+    * Returns the byte order messages are created in when none is given,
+    * which is the native byte order of this machine.
+    * @return Endian.BIG or Endian.LITTLE.
+    */
+   public static byte getDefaultEndianness()
+   {
+      return NATIVE_ENDIAN;
+   }
 
-   private boolean big;
+   boolean big;
    protected byte[][] wiredata;
    protected long bytecounter;
    protected Map<Byte, Object> headers;
@@ -140,12 +168,21 @@ public class Message
    protected byte flags;
    protected byte protover;
    private Object[] args;
+   /* Where each argument starts in the body */
+   private int[] argofs;
+   private Object[] lazyargs;
    private byte[] body;
    private long bodylen = 0;
-   private int preallocated = 0;
-   private int paofs = 0;
-   private byte[] pabuf;
-   private int bufferuse = 0;
+   /* The pooled buffer being marshalled into, the first bytecounter bytes are used.
+      Null once the wire data has been built from it. */
+   private byte[] encbuf;
+   /* The header fields as read off the wire, used by setSource to avoid re-marshalling them */
+   private byte[] rawheader;
+   private int rawheaderofs;
+   private int rawheaderlen;
+   private boolean rawheaderpooled;
+   /* set while appending header fields, whose strings come from the cache */
+   private boolean inheader;
 
    /**
     * Returns the name of the given header field.
@@ -173,7 +210,7 @@ public class Message
     */
    protected Message(byte endian, byte type, byte flags) throws DBusException
    {
-      wiredata = new byte[BUFFERINCREMENT][];
+      wiredata = NO_WIREDATA;
       headers = new HashMap<Byte, Object>();
       big = (Endian.BIG == endian);
       bytecounter = 0;
@@ -183,7 +220,6 @@ public class Message
       if (Debug.debug) Debug.print(Debug.DEBUG, "Creating message with serial "+serial);
       this.type = type;
       this.flags = flags;
-      preallocate(4);
       append("yyyy", endian, type, flags, Message.PROTOCOL);
    }
    /**
@@ -191,12 +227,15 @@ public class Message
     */
    protected Message()
    {
-      wiredata = new byte[BUFFERINCREMENT][];
+      wiredata = NO_WIREDATA;
       headers = new HashMap<Byte, Object>();
       bytecounter = 0;
    }
    /**
     * Create a message from wire-format data.
+    * The msg array is not retained and may be re-used by the caller once
+    * this returns. The headers and body arrays are kept; headers is
+    * given back to the MessageReader's pool by releaseHeader.
     * @param msg D-Bus serialized data of type yyyuu
     * @param headers D-Bus serialized data of type a(yv)
     * @param body D-Bus serialized data of the signature defined in headers.
@@ -208,15 +247,15 @@ public class Message
       type = msg[1];
       flags = msg[2];
       protover = msg[3];
-      wiredata[0] = msg;
-      wiredata[1] = headers;
-      wiredata[2] = body;
       this.body = body;
-      bufferuse = 3;
-      bodylen = ((Number) extract(Message.ArgumentType.UINT32_STRING, msg, 4)[0]).longValue();
-      serial = ((Number) extract(Message.ArgumentType.UINT32_STRING, msg, 8)[0]).longValue();
-      bytecounter = msg.length+headers.length+body.length;
+      bodylen = demarshallint(msg, 4, msg[0], 4);
+      serial = demarshallint(msg, 8, msg[0], 4);
+      rawheader = headers;
+      rawheaderofs = 8;
+      rawheaderlen = (int) demarshallint(headers, 0, msg[0], 4);
+      rawheaderpooled = true;
       if (Debug.debug) Debug.print(Debug.VERBOSE, headers);
+      if (readHeader()) return;
       Object[] hs = extract("a(yv)", headers, 0);
       if (Debug.debug) Debug.print(Debug.VERBOSE, Arrays.deepToString(hs));
       for (Object o: (Vector<Object>) hs[0]) {
@@ -224,73 +263,122 @@ public class Message
       }
    }
    /**
-    * Create a buffer of num bytes.
-    * Data is copied to this rather than added to the buffer list.
+    * Read the header fields straight from the raw header, taking the
+    * strings from the header string cache.
+    * @return false if the header has a field this cannot read, in which
+    * case it must be extracted in full.
     */
-   private void preallocate(int num)
+   private boolean readHeader() throws DBusException
    {
-      preallocated = 0;
-      pabuf = new byte[num];
-      appendBytes(pabuf);
-      preallocated = num;
-      paofs = 0;
+      byte[] raw = rawheader;
+      int end = rawheaderofs+rawheaderlen;
+      if (end > raw.length) return false;
+      int o = rawheaderofs;
+      try {
+         // every field is a struct, so starts on an 8 byte boundary
+         while (o < end) {
+            if (o+4 > end || 1 != raw[o+1]) return false;
+            int v = o+4;
+            int len;
+            Object value;
+            switch (raw[o+2]) {
+               case ArgumentType.STRING:
+               case ArgumentType.OBJECT_PATH:
+                  if (v+4 > end) return false;
+                  len = (int) demarshallint(raw, v, 4);
+                  if (len < 0 || v+4+len+1 > end) return false;
+                  String str = headerstrings.decode(raw, v+4, len);
+                  if (ArgumentType.OBJECT_PATH == raw[o+2]) value = new ObjectPath(null, str);
+                  else value = str;
+                  v += 4+len+1;
+                  break;
+               case ArgumentType.SIGNATURE:
+                  len = (raw[v] & 0xFF);
+                  if (v+1+len+1 > end) return false;
+                  value = headerstrings.decode(raw, v+1, len);
+                  v += 1+len+1;
+                  break;
+               case ArgumentType.UINT32:
+                  if (v+4 > end) return false;
+                  value = new UInt32(demarshallint(raw, v, 4));
+                  v += 4;
+                  break;
+               default:
+                  return false;
+            }
+            headers.put(raw[o], value);
+            o = align(v, ArgumentType.STRUCT1);
+         }
+      } catch (UnsupportedEncodingException UEe) {
+         if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(UEe);
+         throw new DBusException(_("System does not support UTF-8 encoding"));
+      }
+      return true;
    }
    /**
-    * Ensures there are enough free buffers.
-    * @param num number of free buffers to create.
+    * Ensures there is room for num more bytes in the encode buffer,
+    * re-opening it from the wire data if it has been built.
     */
-   private void ensureBuffers(int num)
+   private void ensureBuffer(int num)
    {
-      int increase = num - wiredata.length + bufferuse;
-      if (increase > 0) {
-         if (increase < BUFFERINCREMENT) increase = BUFFERINCREMENT;
-         if (Debug.debug) Debug.print(Debug.VERBOSE, "Resizing "+bufferuse);
-         byte[][] temp = new byte[wiredata.length+increase][];
-         System.arraycopy(wiredata, 0, temp, 0, wiredata.length);
-         wiredata = temp;
+      int used = (int) bytecounter;
+      if (null == encbuf) {
+         encbuf = pool.take(Math.max(ENCODE_INITIAL_SIZE, used+num));
+         int o = 0;
+         for (int i = 0; i < wiredata.length && null != wiredata[i]; i++) {
+            System.arraycopy(wiredata[i], 0, encbuf, o, wiredata[i].length);
+            o += wiredata[i].length;
+         }
+         wiredata = NO_WIREDATA;
+      } else if (used+num > encbuf.length) {
+         int size = encbuf.length;
+         while (size < used+num) size *= 2;
+         if (Debug.debug) Debug.print(Debug.VERBOSE, "Resizing "+encbuf.length+" to "+size);
+         byte[] temp = pool.take(size);
+         System.arraycopy(encbuf, 0, temp, 0, used);
+         pool.give(encbuf);
+         encbuf = temp;
       }
    }
    /**
-    * Appends a buffer to the buffer list.
+    * Appends a buffer to the message.
     */
    protected void appendBytes(byte[] buf) 
    {
       if (null == buf) return;
-      if (preallocated > 0) {
-         if (paofs+buf.length > pabuf.length)
-            throw new ArrayIndexOutOfBoundsException(MessageFormat.format(_("Array index out of bounds, paofs={0}, pabuf.length={1}, buf.length={2}."), new Object[] { paofs, pabuf.length, buf.length }));
-         System.arraycopy(buf, 0, pabuf, paofs, buf.length);
-         paofs += buf.length;
-         preallocated -= buf.length;
-      } else {
-         if (bufferuse == wiredata.length) {
-            if (Debug.debug) Debug.print(Debug.VERBOSE, "Resizing "+bufferuse);
-            byte[][] temp = new byte[wiredata.length+BUFFERINCREMENT][];
-            System.arraycopy(wiredata, 0, temp, 0, wiredata.length);
-            wiredata = temp;
-         }
-         wiredata[bufferuse++] = buf;
-         bytecounter += buf.length; 
-      }
+      ensureBuffer(buf.length);
+      System.arraycopy(buf, 0, encbuf, (int) bytecounter, buf.length);
+      bytecounter += buf.length; 
    }
    /**
-    * Appends a byte to the buffer list.
+    * Appends a byte to the message.
     */
    protected void appendByte(byte b) 
    {
-      if (preallocated > 0) {
-         pabuf[paofs++] = b;
-         preallocated--;
-      } else {
-         if (bufferuse == wiredata.length) {
-            if (Debug.debug) Debug.print(Debug.VERBOSE, "Resizing "+bufferuse);
-            byte[][] temp = new byte[wiredata.length+BUFFERINCREMENT][];
-            System.arraycopy(wiredata, 0, temp, 0, wiredata.length);
-            wiredata = temp;
-         }
-         wiredata[bufferuse++] = new byte[] { b };
-         bytecounter++; 
-      }
+      ensureBuffer(1);
+      encbuf[(int) bytecounter++] = b;
+   }
+   /**
+    * Leaves space in the message for a 4 byte length, to be filled in
+    * with setLength once it is known.
+    * @return The offset of the length.
+    */
+   protected int reserveLength()
+   {
+      ensureBuffer(4);
+      int ofs = (int) bytecounter;
+      bytecounter += 4;
+      return ofs;
+   }
+   /**
+    * Fills in a length left by reserveLength.
+    * @param ofs The offset returned by reserveLength.
+    * @param length The length.
+    */
+   protected void setLength(int ofs, long length)
+   {
+      ensureBuffer(0);
+      marshallint(length, encbuf, ofs, 4);
    }
    /**
     * Demarshalls an integer of a given width from a buffer.
@@ -348,9 +436,9 @@ public class Message
     */
    public void appendint(long l, int width)
    { 
-      byte[] buf = new byte[width];
-      marshallint(l, buf, 0, width);
-      appendBytes(buf);
+      ensureBuffer(width);
+      marshallint(l, encbuf, (int) bytecounter, width);
+      bytecounter += width;
    }
    /**
     * Marshalls an integer of a given width into a buffer.
@@ -393,10 +481,46 @@ public class Message
          l >>= 8;
       }
    }
-   public byte[][] getWireData()
+   /**
+    * Returns a view of part of a buffer in the byte order of this message,
+    * for reading or writing arrays of primitives in bulk.
+    */
+   private ByteBuffer view(byte[] buf, int ofs, int len)
+   {
+      return ByteBuffer.wrap(buf, ofs, len).order(big ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+   }
+   /**
+    * Returns the marshalled message. Once this has been called the encode
+    * buffer is given back to the pool; appending to the message again
+    * copies the data back into a new one.
+    * The data is copied out rather than the pooled buffer being lent to
+    * the writer, because one message may be written to several
+    * connections, or share its wire data with another message, and
+    * nothing knows which write is the last.
+    */
+   public synchronized byte[][] getWireData()
    {
+      if (null != encbuf) {
+         byte[] data = new byte[(int) bytecounter];
+         System.arraycopy(encbuf, 0, data, 0, data.length);
+         pool.give(encbuf);
+         encbuf = null;
+         wiredata = new byte[][] { data };
+      }
       return wiredata;
    }
+   /**
+    * Replace the marshalled message, discarding any encode buffer.
+    */
+   synchronized void setWireData(byte[][] wiredata)
+   {
+      if (null != encbuf) pool.give(encbuf);
+      encbuf = null;
+      this.wiredata = wiredata;
+      bytecounter = 0;
+      for (int i = 0; i < wiredata.length && null != wiredata[i]; i++)
+         bytecounter += wiredata[i].length;
+   }
    /**
     * Formats the message in a human-readable format.
     */
@@ -473,24 +597,20 @@ public class Message
    public Object getHeader(byte type) { return headers.get(type); }
    /**
     * Appends a value to the message.
-    * The type of the value is read from a D-Bus signature and used to marshall 
-    * the value.
-    * @param sigb A buffer of the D-Bus signature.
-    * @param sigofs The offset into the signature corresponding to this value.
+    * The value is marshalled as the given type from a parsed D-Bus signature.
+    * @param c The type of the value.
     * @param data The value to marshall.
-    * @return The offset into the signature of the end of this value's type.
     */
    @SuppressWarnings("unchecked")
-   private int appendone(byte[] sigb, int sigofs, Object data) throws DBusException
+   private void appendone(SignatureCodec c, Object data) throws DBusException
    {
       try {
-         int i = sigofs;
          if (Debug.debug) Debug.print(Debug.VERBOSE, (Object) bytecounter);
-         if (Debug.debug) Debug.print(Debug.VERBOSE, "Appending type: "+((char)sigb[i])+" value: "+data);
+         if (Debug.debug) Debug.print(Debug.VERBOSE, "Appending type: "+((char)c.type)+" value: "+data);
 
          // pad to the alignment of this type.
-         pad(sigb[i]);
-         switch (sigb[i]) {
+         padTo(c.align);
+         switch (c.type) {
             case ArgumentType.BYTE:
                appendByte(((Number) data).byteValue());
                break;
@@ -536,7 +656,10 @@ public class Message
                String payload = data.toString();
                byte[] payloadbytes = null;
                try {
-                  payloadbytes = payload.getBytes("UTF-8");
+                  if (inheader)
+                     payloadbytes = headerstrings.encode(payload);
+                  else
+                     payloadbytes = payload.getBytes("UTF-8");
                } catch (UnsupportedEncodingException UEe) {
                   if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(UEe);
                   throw new DBusException(_("System does not support UTF-8 encoding"));
@@ -548,19 +671,10 @@ public class Message
                //pad(ArgumentType.STRING);? do we need this?
                break;
             case ArgumentType.SIGNATURE:
-               // Signatures are marshalled as a byte with the length,
-               // followed by the String, followed by a null byte.
-               // Signatures are generally short, so preallocate the array
-               // for the string, length and null byte.
                if (data instanceof Type[])
-                  payload = Marshalling.getDBusType((Type[]) data);
+                  appendSignature(Marshalling.getDBusType((Type[]) data));
                else
-                  payload = (String) data;
-               byte[] pbytes = payload.getBytes();
-               preallocate(2+pbytes.length);
-               appendByte((byte) pbytes.length);
-               appendBytes(pbytes);
-               appendByte((byte) 0);
+                  appendSignature((String) data);
                break;
             case ArgumentType.ARRAY:
                // Arrays are given as a UInt32 for the length in bytes,
@@ -572,87 +686,77 @@ public class Message
                      Debug.print(Debug.VERBOSE, "Appending array: "+Arrays.deepToString((Object[])data));
                }
 
-               byte[] alen = new byte[4];
-               appendBytes(alen);
-               pad(sigb[++i]);
-               long c = bytecounter;
+               SignatureCodec e = c.element;
+               int alen = reserveLength();
+               padTo(e.align);
+               long start = bytecounter;
 
                // optimise primatives
                if (data.getClass().isArray() && 
                      data.getClass().getComponentType().isPrimitive()) {
-                  byte[] primbuf;
-                  int algn = getAlignment(sigb[i]);
+                  int algn = e.align;
                   int len = Array.getLength(data);
-                  switch (sigb[i]) {
+                  ensureBuffer(len*algn);
+                  byte[] primbuf = encbuf;
+                  int pstart = (int) bytecounter;
+                  switch (e.type) {
                      case ArgumentType.BYTE:
-                        primbuf = (byte[]) data;
+                        System.arraycopy((byte[]) data, 0, primbuf, pstart, len);
                         break;
                      case ArgumentType.INT16:
+                        if (data instanceof short[])
+                           view(primbuf, pstart, len*algn).asShortBuffer().put((short[]) data);
+                        else
+                           for (int j = 0, k = pstart; j < len; j++, k += algn)
+                              marshallint(Array.getLong(data, j), primbuf, k, algn);
+                        break;
                      case ArgumentType.INT32:
+                        if (data instanceof int[])
+                           view(primbuf, pstart, len*algn).asIntBuffer().put((int[]) data);
+                        else
+                           for (int j = 0, k = pstart; j < len; j++, k += algn)
+                              marshallint(Array.getLong(data, j), primbuf, k, algn);
+                        break;
                      case ArgumentType.INT64:
-                        primbuf = new byte[len*algn];
-                        for (int j = 0, k = 0; j < len; j++, k += algn)
-                           marshallint(Array.getLong(data, j), primbuf, k, algn);
+                        if (data instanceof long[])
+                           view(primbuf, pstart, len*algn).asLongBuffer().put((long[]) data);
+                        else
+                           for (int j = 0, k = pstart; j < len; j++, k += algn)
+                              marshallint(Array.getLong(data, j), primbuf, k, algn);
                         break;
                      case ArgumentType.BOOLEAN:
-                        primbuf = new byte[len*algn];
-                        for (int j = 0, k = 0; j < len; j++, k += algn)
-                           marshallint(Array.getBoolean(data, j)?1:0, primbuf, k, algn);
+                        boolean[] bs = (boolean[]) data;
+                        for (int j = 0, k = pstart; j < len; j++, k += algn)
+                           marshallint(bs[j]?1:0, primbuf, k, algn);
                         break;
                      case ArgumentType.DOUBLE:
-                        primbuf = new byte[len*algn];
-                        if (data instanceof float[])
-                           for (int j = 0, k = 0; j < len; j++, k += algn)
-                              marshallint(Double.doubleToRawLongBits(((float[])data)[j]),
-                                    primbuf, k, algn);
-                        else
-                           for (int j = 0, k = 0; j < len; j++, k += algn)
-                              marshallint(Double.doubleToRawLongBits(((double[])data)[j]),
-                                    primbuf, k, algn);
+                        if (data instanceof float[]) {
+                           float[] fs = (float[]) data;
+                           double[] ds = new double[len];
+                           for (int j = 0; j < len; j++) ds[j] = fs[j];
+                           data = ds;
+                        }
+                        view(primbuf, pstart, len*algn).asDoubleBuffer().put((double[]) data);
                         break;
                      case ArgumentType.FLOAT:
-                        primbuf = new byte[len*algn];
-                        for (int j = 0, k = 0; j < len; j++, k += algn)
-                           marshallint(
-                                 Float.floatToRawIntBits(((float[])data)[j]),
-                                 primbuf, k, algn);
+                        view(primbuf, pstart, len*algn).asFloatBuffer().put((float[]) data);
                         break;
                      default:
                         throw new MarshallingException(_("Primative array being sent as non-primative array."));
                   }
-                  appendBytes(primbuf);
+                  bytecounter += len*algn;
                } else if (data instanceof List) {
-                  Object[] contents = ((List) data).toArray();
-                  int diff = i;
-                  ensureBuffers(contents.length*4);
-                  for (Object o: contents) 
-                     diff = appendone(sigb, i, o);
-                  i = diff;
+                  for (Object o: (List<Object>) data)
+                     appendone(e, o);
                } else if (data instanceof Map) {
-                  int diff = i;
-                  ensureBuffers(((Map) data).size()*6);
                   for (Map.Entry<Object,Object> o: ((Map<Object,Object>) data).entrySet())
-                     diff = appendone(sigb, i, o);
-                  if (i == diff) {
-                     // advance the type parser even on 0-size arrays.
-                     Vector<Type> temp = new Vector<Type>();
-                     byte[] temp2 = new byte[sigb.length-diff];
-                     System.arraycopy(sigb, diff, temp2, 0, temp2.length);
-                     String temp3 = new String(temp2);
-                     int temp4 = Marshalling.getJavaType(temp3, temp, 1);
-                     diff += temp4;
-                  }
-                  i = diff;
+                     appendone(e, o);
                } else {
-                  Object[] contents = (Object[]) data;
-                  ensureBuffers(contents.length*4);
-                  int diff = i;
-                  for (Object o: contents) 
-                     diff = appendone(sigb, i, o);
-                  i = diff;
+                  for (Object o: (Object[]) data)
+                     appendone(e, o);
                }
-               if (Debug.debug) Debug.print(Debug.VERBOSE, "start: "+c+" end: "+bytecounter+" length: "+(bytecounter-c));
-               marshallint(bytecounter-c, alen, 0, 4);
+               if (Debug.debug) Debug.print(Debug.VERBOSE, "start: "+start+" end: "+bytecounter+" length: "+(bytecounter-start));
+               setLength(alen, bytecounter-start);
                break;
             case ArgumentType.STRUCT1:
                // Structs are aligned to 8 bytes
@@ -662,67 +766,85 @@ public class Message
                   contents = ((Container) data).getParameters();
                else
                   contents = (Object[]) data;
-               ensureBuffers(contents.length*4);
-               int j = 0;
-               for (i++; sigb[i] != ArgumentType.STRUCT2; i++)
-                  i = appendone(sigb, i, contents[j++]);
+               for (int j = 0; j < c.members.length; j++)
+                  appendone(c.members[j], contents[j]);
                break;
             case ArgumentType.DICT_ENTRY1:
                // Dict entries are the same as structs.
                if (data instanceof Map.Entry) {
-                  i++;
-                  i = appendone(sigb, i, ((Map.Entry) data).getKey());
-                  i++;
-                  i = appendone(sigb, i, ((Map.Entry) data).getValue());
-                  i++;
+                  appendone(c.members[0], ((Map.Entry) data).getKey());
+                  appendone(c.members[1], ((Map.Entry) data).getValue());
                } else {
                   contents = (Object[]) data;
-                  j = 0;
-                  for (i++; sigb[i] != ArgumentType.DICT_ENTRY2; i++)
-                     i = appendone(sigb, i, contents[j++]);
+                  for (int j = 0; j < c.members.length; j++)
+                     appendone(c.members[j], contents[j]);
                }
                break;
             case ArgumentType.VARIANT:
                // Variants are marshalled as a signature
                // followed by the value.
+               String sig;
+               Object value;
                if (data instanceof Variant) {
                   Variant var = (Variant) data;
-                  appendone(new byte[] {ArgumentType.SIGNATURE}, 0, var.getSig());
-                  appendone((var.getSig()).getBytes(), 0, var.getValue());
+                  sig = var.getSig();
+                  value = var.getValue();
                } else if (data instanceof Object[]) {
                   contents = (Object[]) data;
-                  appendone(new byte[] {ArgumentType.SIGNATURE}, 0, contents[0]);
-                  appendone(((String) contents[0]).getBytes(), 0, contents[1]);
+                  sig = (String) contents[0];
+                  value = contents[1];
                } else {
-                  String sig = Marshalling.getDBusType(data.getClass())[0];
-                  appendone(new byte[] {ArgumentType.SIGNATURE}, 0, sig);
-                  appendone((sig).getBytes(), 0, data);
+                  sig = Marshalling.getDBusType(data.getClass())[0];
+                  value = data;
                }
+               appendSignature(sig);
+               appendone(SignatureCodec.getOne(sig), value);
                break;
          }
-         return i;
       } catch (ClassCastException CCe) {
          if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, CCe);
-         throw new MarshallingException(MessageFormat.format(_("Trying to marshall to unconvertable type (from {0} to {1})."), new Object[] { data.getClass().getName(), sigb[sigofs] }));
+         throw new MarshallingException(MessageFormat.format(_("Trying to marshall to unconvertable type (from {0} to {1})."), new Object[] { data.getClass().getName(), String.valueOf((char) c.type) }));
       }
    }
+   /**
+    * Appends a signature, as a byte with the length, followed by the
+    * String, followed by a null byte.
+    */
+   private void appendSignature(String sig) throws DBusException
+   {
+      byte[] pbytes;
+      if (inheader) try {
+         pbytes = headerstrings.encode(sig);
+      } catch (UnsupportedEncodingException UEe) {
+         if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(UEe);
+         throw new DBusException(_("System does not support UTF-8 encoding"));
+      } else
+         pbytes = sig.getBytes();
+      appendByte((byte) pbytes.length);
+      appendBytes(pbytes);
+      appendByte((byte) 0);
+   }
    /**
     * Pad the message to the proper alignment for the given type.
     */
    public void pad(byte type)
    {
       if (Debug.debug) Debug.print(Debug.VERBOSE, "padding for "+(char)type);
-      int a = getAlignment(type);
-      if (Debug.debug) Debug.print(Debug.VERBOSE, preallocated+" "+paofs+" "+bytecounter+" "+a);
-      int b = (int) ((bytecounter-preallocated)%a);
+      padTo(getAlignment(type));
+   }
+   /**
+    * Pad the message to a multiple of a bytes.
+    */
+   private void padTo(int a)
+   {
+      int b = (int) (bytecounter%a);
       if (0 == b) return;
       a = (a-b);
-      if (preallocated > 0) {
-         paofs += a;
-         preallocated -= a;
-      } else
-         appendBytes(padding[a]);
-      if (Debug.debug) Debug.print(Debug.VERBOSE, preallocated+" "+paofs+" "+bytecounter+" "+a);
+      ensureBuffer(a);
+      // the buffer may be re-used, so the padding must be cleared
+      for (int i = 0; i < a; i++)
+         encbuf[(int) bytecounter++] = 0;
+      if (Debug.debug) Debug.print(Debug.VERBOSE, bytecounter+" "+a);
    }
    /**
     * Return the alignment for a given type.
@@ -762,6 +884,21 @@ public class Message
             return 1;
       }
    }
+   /**
+    * Append header fields to the message, taking the encoded strings from
+    * the header string cache.
+    * @param sig The signature(s) of the value(s).
+    * @param data The value(s).
+    */
+   protected void appendHeader(String sig, Object... data) throws DBusException
+   {
+      inheader = true;
+      try {
+         append(sig, data);
+      } finally {
+         inheader = false;
+      }
+   }
    /**
     * Append a series of values to the message.
     * @param sig The signature(s) of the value(s).
@@ -770,11 +907,10 @@ public class Message
    public void append(String sig, Object... data) throws DBusException
    {
       if (Debug.debug) Debug.print(Debug.DEBUG, "Appending sig: "+sig+" data: "+Arrays.deepToString(data));
-      byte[] sigb = sig.getBytes();
-      int j = 0;
-      for (int i = 0; i < sigb.length; i++) {
-         if (Debug.debug) Debug.print(Debug.VERBOSE, "Appending item: "+i+" "+((char)sigb[i])+" "+j);
-         i = appendone(sigb, i, data[j++]);
+      SignatureCodec[] codecs = SignatureCodec.get(sig);
+      for (int i = 0; i < codecs.length; i++) {
+         if (Debug.debug) Debug.print(Debug.VERBOSE, "Appending item: "+i+" "+((char)codecs[i].type));
+         appendone(codecs[i], data[i]);
       }
    }
    /**
@@ -786,226 +922,246 @@ public class Message
    public int align(int current, byte type)
    {
       if (Debug.debug) Debug.print(Debug.VERBOSE, "aligning to "+(char)type);
-      int a = getAlignment(type);
+      return alignTo(current, getAlignment(type));
+   }
+   /**
+    * Align a counter to a multiple of a.
+    */
+   private static int alignTo(int current, int a)
+   {
       if (0 == (current%a)) return current;
       return current+(a-(current%a));
    }
    /**
     * Demarshall one value from a buffer.
-    * @param sigb A buffer of the D-Bus signature.
+    * @param c The type of the value.
     * @param buf The buffer to demarshall from.
-    * @param ofs An array of two ints, the offset into the signature buffer 
-    *            and the offset into the data buffer. These values will be
-    *            updated to the start of the next value ofter demarshalling.
+    * @param pos The offset into the buffer, which is updated to the start
+    *            of the next value after demarshalling.
     * @param contained converts nested arrays to Lists
     * @return The demarshalled value.
     */
-   private Object extractone(byte[] sigb, byte[] buf, int[] ofs, boolean contained) throws DBusException
+   private Object extractone(SignatureCodec c, byte[] buf, int[] pos, boolean contained) throws DBusException
    {
-      if (Debug.debug) Debug.print(Debug.VERBOSE, "Extracting type: "+((char)sigb[ofs[0]])+" from offset "+ofs[1]);
+      if (Debug.debug) Debug.print(Debug.VERBOSE, "Extracting type: "+((char)c.type)+" from offset "+pos[0]);
       Object rv = null;
-      ofs[1] = align(ofs[1], sigb[ofs[0]]);
-      switch (sigb[ofs[0]]) {
+      pos[0] = alignTo(pos[0], c.align);
+      switch (c.type) {
          case ArgumentType.BYTE:
-            rv = buf[ofs[1]++];
+            rv = buf[pos[0]++];
             break;
          case ArgumentType.UINT32:
-            rv = new UInt32(demarshallint(buf, ofs[1], 4));
-            ofs[1] += 4;
+            rv = new UInt32(demarshallint(buf, pos[0], 4));
+            pos[0] += 4;
             break;
          case ArgumentType.INT32:
-            rv = (int) demarshallint(buf, ofs[1], 4);
-            ofs[1] += 4;
+            rv = (int) demarshallint(buf, pos[0], 4);
+            pos[0] += 4;
             break;
          case ArgumentType.INT16:
-            rv = (short) demarshallint(buf, ofs[1], 2);
-            ofs[1] += 2;
+            rv = (short) demarshallint(buf, pos[0], 2);
+            pos[0] += 2;
             break;
          case ArgumentType.UINT16:
-            rv = new UInt16((int) demarshallint(buf, ofs[1], 2));
-            ofs[1] += 2;
+            rv = new UInt16((int) demarshallint(buf, pos[0], 2));
+            pos[0] += 2;
             break;
          case ArgumentType.INT64:
-            rv = demarshallint(buf, ofs[1], 8);
-            ofs[1] += 8;
+            rv = demarshallint(buf, pos[0], 8);
+            pos[0] += 8;
             break;
          case ArgumentType.UINT64:
             long top;
             long bottom;
             if (big) {
-               top = demarshallint(buf, ofs[1], 4);
-               ofs[1] += 4;
-               bottom = demarshallint(buf, ofs[1], 4);
+               top = demarshallint(buf, pos[0], 4);
+               pos[0] += 4;
+               bottom = demarshallint(buf, pos[0], 4);
             } else {
-               bottom = demarshallint(buf, ofs[1], 4);
-               ofs[1] += 4;
-               top = demarshallint(buf, ofs[1], 4);
+               bottom = demarshallint(buf, pos[0], 4);
+               pos[0] += 4;
+               top = demarshallint(buf, pos[0], 4);
             }
             rv = new UInt64(top, bottom);
-            ofs[1] += 4;
+            pos[0] += 4;
             break;
          case ArgumentType.DOUBLE:
-            long l = demarshallint(buf, ofs[1], 8);
-            ofs[1] += 8;
+            long l = demarshallint(buf, pos[0], 8);
+            pos[0] += 8;
             rv = Double.longBitsToDouble(l);
             break;
          case ArgumentType.FLOAT:
-            int rf = (int) demarshallint(buf, ofs[1], 4);
-            ofs[1] += 4;
+            int rf = (int) demarshallint(buf, pos[0], 4);
+            pos[0] += 4;
             rv = Float.intBitsToFloat(rf);
             break;
          case ArgumentType.BOOLEAN:
-            rf = (int) demarshallint(buf, ofs[1], 4);
-            ofs[1] += 4;
+            rf = (int) demarshallint(buf, pos[0], 4);
+            pos[0] += 4;
             rv = (1==rf)?Boolean.TRUE:Boolean.FALSE;
             break;
          case ArgumentType.ARRAY:
-            long size = demarshallint(buf, ofs[1], 4);
+            long size = demarshallint(buf, pos[0], 4);
             if (Debug.debug) Debug.print(Debug.VERBOSE, "Reading array of size: "+size);
-            ofs[1] += 4;
-            byte algn = (byte) getAlignment(sigb[++ofs[0]]);
-            ofs[1] = align(ofs[1], sigb[ofs[0]]);
+            pos[0] += 4;
+            SignatureCodec e = c.element;
+            int algn = e.align;
+            pos[0] = alignTo(pos[0], algn);
             int length = (int) (size / algn);
             if (length > DBusConnection.MAX_ARRAY_LENGTH)
                throw new MarshallingException(_("Arrays must not exceed ")+DBusConnection.MAX_ARRAY_LENGTH);
             // optimise primatives
-            switch (sigb[ofs[0]]) {
+            switch (e.type) {
                case ArgumentType.BYTE:
                   rv = new byte[length];
-                  System.arraycopy(buf, ofs[1], rv, 0, length);
-                  ofs[1] += size;
+                  System.arraycopy(buf, pos[0], rv, 0, length);
+                  pos[0] += size;
                   break;
                case ArgumentType.INT16:
                   rv = new short[length];
-                  for (int j = 0; j < length; j++, ofs[1] += algn) 
-                     ((short[]) rv)[j] = (short) demarshallint(buf, ofs[1], algn);
+                  view(buf, pos[0], length*algn).asShortBuffer().get((short[]) rv);
+                  pos[0] += length*algn;
                   break;
                case ArgumentType.INT32:
                   rv = new int[length];
-                  for (int j = 0; j < length; j++, ofs[1] += algn) 
-                     ((int[]) rv)[j] = (int) demarshallint(buf, ofs[1], algn);
+                  view(buf, pos[0], length*algn).asIntBuffer().get((int[]) rv);
+                  pos[0] += length*algn;
                   break;
                case ArgumentType.INT64:
                   rv = new long[length];
-                  for (int j = 0; j < length; j++, ofs[1] += algn) 
-                     ((long[]) rv)[j] = demarshallint(buf, ofs[1], algn);
+                  view(buf, pos[0], length*algn).asLongBuffer().get((long[]) rv);
+                  pos[0] += length*algn;
                   break;
                case ArgumentType.BOOLEAN:
                   rv = new boolean[length];
-                  for (int j = 0; j < length; j++, ofs[1] += algn) 
-                     ((boolean[]) rv)[j] = (1 == demarshallint(buf, ofs[1], algn));
+                  for (int j = 0; j < length; j++, pos[0] += algn) 
+                     ((boolean[]) rv)[j] = (1 == demarshallint(buf, pos[0], algn));
                   break;
                case ArgumentType.FLOAT:
                   rv = new float[length];
-                  for (int j = 0; j < length; j++, ofs[1] += algn) 
-                     ((float[]) rv)[j] =
-                        Float.intBitsToFloat((int)demarshallint(buf, ofs[1], algn));
+                  view(buf, pos[0], length*algn).asFloatBuffer().get((float[]) rv);
+                  pos[0] += length*algn;
                   break;
                case ArgumentType.DOUBLE:
                   rv = new double[length];
-                  for (int j = 0; j < length; j++, ofs[1] += algn) 
-                     ((double[]) rv)[j] =
-                        Double.longBitsToDouble(demarshallint(buf, ofs[1], algn));
+                  view(buf, pos[0], length*algn).asDoubleBuffer().get((double[]) rv);
+                  pos[0] += length*algn;
                   break;
                case ArgumentType.DICT_ENTRY1:
-                  if (0 == size) {
-                     // advance the type parser even on 0-size arrays.
-                     Vector<Type> temp = new Vector<Type>();
-                     byte[] temp2 = new byte[sigb.length-ofs[0]];
-                     System.arraycopy(sigb, ofs[0], temp2, 0, temp2.length);
-                     String temp3 = new String(temp2);
-                     // ofs[0] gets incremented anyway. Leave one character on the stack
-                     int temp4 = Marshalling.getJavaType(temp3, temp, 1) - 1;
-                     ofs[0] += temp4;
-                     if (Debug.debug) Debug.print(Debug.VERBOSE, "Aligned type: "+temp3+" "+temp4+" "+ofs[0]);
-                  }
-                  int ofssave = ofs[0];
-                  long end = ofs[1]+size;
+                  long end = pos[0]+size;
                   Vector<Object[]> entries = new Vector<Object[]>();
-                  while (ofs[1] < end) {
-                     ofs[0] = ofssave;
-                     entries.add((Object[]) extractone(sigb, buf, ofs, true));
-                  }
+                  while (pos[0] < end)
+                     entries.add((Object[]) extractone(e, buf, pos, true));
                   rv = new DBusMap<Object, Object>(entries.toArray(new Object[0][]));
                   break;
                default:
-                  if (0 == size) {
-                     // advance the type parser even on 0-size arrays.
-                     Vector<Type> temp = new Vector<Type>();
-                     byte[] temp2 = new byte[sigb.length-ofs[0]];
-                     System.arraycopy(sigb, ofs[0], temp2, 0, temp2.length);
-                     String temp3 = new String(temp2);
-                     // ofs[0] gets incremented anyway. Leave one character on the stack
-                     int temp4 = Marshalling.getJavaType(temp3, temp, 1) - 1;
-                     ofs[0] += temp4;
-                     if (Debug.debug) Debug.print(Debug.VERBOSE, "Aligned type: "+temp3+" "+temp4+" "+ofs[0]);
-                  }
-                  ofssave = ofs[0];
-                  end = ofs[1]+size;
+                  end = pos[0]+size;
                   Vector<Object> contents = new Vector<Object>();
-                  while (ofs[1] < end) {
-                     ofs[0] = ofssave;
-                     contents.add(extractone(sigb, buf, ofs, true));
-                  }
+                  while (pos[0] < end)
+                     contents.add(extractone(e, buf, pos, true));
                   rv = contents;
             }
             if (contained && !(rv instanceof List) && !(rv instanceof Map))
                rv = ArrayFrob.listify(rv);
             break;
          case ArgumentType.STRUCT1:
-            Vector<Object> contents = new Vector<Object>();
-            while (sigb[++ofs[0]] != ArgumentType.STRUCT2)
-               contents.add(extractone(sigb, buf, ofs, true));
-            rv = contents.toArray();
-            break;
          case ArgumentType.DICT_ENTRY1:
-            Object[] decontents = new Object[2];
-            if (Debug.debug) Debug.print(Debug.VERBOSE, "Extracting Dict Entry ("+Hexdump.toAscii(sigb,ofs[0],sigb.length-ofs[0])+") from: "+Hexdump.toHex(buf,ofs[1],buf.length-ofs[1]));
-            ofs[0]++;
-            decontents[0] = extractone(sigb, buf, ofs, true);
-            ofs[0]++;
-            decontents[1] = extractone(sigb, buf, ofs, true);
-            ofs[0]++;
-            rv = decontents;
+            Object[] contents = new Object[c.members.length];
+            for (int j = 0; j < contents.length; j++)
+               contents[j] = extractone(c.members[j], buf, pos, true);
+            rv = contents;
             break;
          case ArgumentType.VARIANT:
-            int[] newofs = new int[] { 0, ofs[1] };
-            String sig = (String) extract(ArgumentType.SIGNATURE_STRING, buf, newofs)[0];
-            newofs[0] = 0;
-            rv = new Variant<Object>(extract(sig, buf, newofs)[0] , sig);
-            ofs[1] = newofs[1];
+            length = (buf[pos[0]++] & 0xFF);
+            String sig = new String(buf, pos[0], length);
+            pos[0] += length + 1;
+            rv = new Variant<Object>(extractone(SignatureCodec.getOne(sig), buf, pos, false), sig);
             break;
          case ArgumentType.STRING:
-            length = (int) demarshallint(buf, ofs[1], 4);
-            ofs[1] += 4;
+            length = (int) demarshallint(buf, pos[0], 4);
+            pos[0] += 4;
             try {
-               rv = new String(buf, ofs[1], length, "UTF-8");
+               rv = new String(buf, pos[0], length, "UTF-8");
             } catch (UnsupportedEncodingException UEe) {
                if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(UEe);
                throw new DBusException(_("System does not support UTF-8 encoding"));
             }
-            ofs[1] += length + 1;
+            pos[0] += length + 1;
             break;
          case ArgumentType.OBJECT_PATH:
-            length = (int) demarshallint(buf, ofs[1], 4);
-            ofs[1] += 4;
-            rv = new ObjectPath(getSource(), new String(buf, ofs[1], length));
-            ofs[1] += length + 1;
+            length = (int) demarshallint(buf, pos[0], 4);
+            pos[0] += 4;
+            rv = new ObjectPath(getSource(), new String(buf, pos[0], length));
+            pos[0] += length + 1;
             break;
          case ArgumentType.SIGNATURE:
-            length = (buf[ofs[1]++] & 0xFF);
-            rv = new String(buf, ofs[1], length);
-            ofs[1] += length + 1;
+            length = (buf[pos[0]++] & 0xFF);
+            rv = new String(buf, pos[0], length);
+            pos[0] += length + 1;
             break;
          default: 
-            throw new UnknownTypeCodeException(sigb[ofs[0]]);
+            throw new UnknownTypeCodeException(c.type);
       }
       if (Debug.debug) if (rv instanceof Object[])
-         Debug.print(Debug.VERBOSE, "Extracted: "+Arrays.deepToString((Object[]) rv)+" (now at "+ofs[1]+")");
+         Debug.print(Debug.VERBOSE, "Extracted: "+Arrays.deepToString((Object[]) rv)+" (now at "+pos[0]+")");
       else
-         Debug.print(Debug.VERBOSE, "Extracted: "+rv+" (now at "+ofs[1]+")");
+         Debug.print(Debug.VERBOSE, "Extracted: "+rv+" (now at "+pos[0]+")");
       return rv;
    }
+   /**
+    * Skip over one value in a buffer without demarshalling it.
+    * The offset is updated in the same way as by extractone.
+    */
+   private void skipone(SignatureCodec c, byte[] buf, int[] pos) throws DBusException
+   {
+      pos[0] = alignTo(pos[0], c.align);
+      switch (c.type) {
+         case ArgumentType.BYTE:
+            pos[0]++;
+            break;
+         case ArgumentType.INT16:
+         case ArgumentType.UINT16:
+            pos[0] += 2;
+            break;
+         case ArgumentType.INT32:
+         case ArgumentType.UINT32:
+         case ArgumentType.FLOAT:
+         case ArgumentType.BOOLEAN:
+            pos[0] += 4;
+            break;
+         case ArgumentType.INT64:
+         case ArgumentType.UINT64:
+         case ArgumentType.DOUBLE:
+            pos[0] += 8;
+            break;
+         case ArgumentType.STRING:
+         case ArgumentType.OBJECT_PATH:
+            pos[0] += 4+(int) demarshallint(buf, pos[0], 4)+1;
+            break;
+         case ArgumentType.SIGNATURE:
+            pos[0] += 1+(buf[pos[0]] & 0xFF)+1;
+            break;
+         case ArgumentType.ARRAY:
+            long size = demarshallint(buf, pos[0], 4);
+            pos[0] += 4;
+            pos[0] = alignTo(pos[0], c.element.align);
+            pos[0] += size;
+            break;
+         case ArgumentType.STRUCT1:
+         case ArgumentType.DICT_ENTRY1:
+            for (SignatureCodec m: c.members)
+               skipone(m, buf, pos);
+            break;
+         case ArgumentType.VARIANT:
+            int siglen = buf[pos[0]] & 0xFF;
+            String sig = new String(buf, pos[0]+1, siglen);
+            pos[0] += 1+siglen+1;
+            skipone(SignatureCodec.getOne(sig), buf, pos);
+            break;
+         default: 
+            throw new UnknownTypeCodeException(c.type);
+      }
+   }
    /** 
     * Demarshall values from a buffer.
     * @param sig The D-Bus signature(s) of the value(s).
@@ -1029,12 +1185,16 @@ public class Message
    public Object[] extract(String sig, byte[] buf, int[] ofs) throws DBusException
    {
       if (Debug.debug) Debug.print(Debug.VERBOSE, "extract("+sig+",#"+buf.length+", {"+ofs[0]+","+ofs[1]+"}");
-      Vector<Object> rv = new Vector<Object>();
-      byte[] sigb = sig.getBytes();
-      for (int[] i = ofs; i[0] < sigb.length; i[0]++) {
-         rv.add(extractone(sigb, buf, i, false));
-      }
-      return rv.toArray();
+      SignatureCodec[] codecs = SignatureCodec.get(sig);
+      int first = 0;
+      while (first < codecs.length && codecs[first].end < ofs[0]) first++;
+      Object[] rv = new Object[codecs.length-first];
+      int[] pos = new int[] { ofs[1] };
+      for (int i = first; i < codecs.length; i++)
+         rv[i-first] = extractone(codecs[i], buf, pos, false);
+      ofs[0] = sig.length();
+      ofs[1] = pos[0];
+      return rv;
    }
    /**
     * Returns the Bus ID that sent the message.
@@ -1075,6 +1235,11 @@ public class Message
     * Returns the message flags.
     */
    public int getFlags() { return flags; }
+   /**
+    * Returns the byte order of the message.
+    * @return Endian.BIG or Endian.LITTLE.
+    */
+   public byte getEndianness() { return big ? Endian.BIG : Endian.LITTLE; }
    /**
     * Returns the message serial ID (unique for this connection)
     * @return the message serial.
@@ -1103,19 +1268,76 @@ public class Message
       }
       return args; 
    }
+   /**
+    * Walk the body once, recording where each argument starts.
+    */
+   private void indexParameters() throws DBusException
+   {
+      String sig = (String) headers.get(HeaderField.SIGNATURE);
+      if (null == sig || null == body || 0 == body.length) {
+         argofs = new int[0];
+         lazyargs = new Object[0];
+         return;
+      }
+      SignatureCodec[] codecs = SignatureCodec.get(sig);
+      int[] pos = new int[] { 0 };
+      argofs = new int[codecs.length];
+      for (int i = 0; i < codecs.length; i++) {
+         argofs[i] = pos[0];
+         skipone(codecs[i], body, pos);
+      }
+      lazyargs = new Object[codecs.length];
+   }
+   /**
+    * Returns the number of arguments in the message body without
+    * demarshalling them.
+    */
+   public int getParameterCount() throws DBusException
+   {
+      if (null != args) return args.length;
+      if (null == argofs) indexParameters();
+      return argofs.length;
+   }
+   /**
+    * Demarshall a single argument of the message body. Only the requested
+    * argument is decoded, so this is cheaper than getParameters() when
+    * only some of the arguments are needed, such as the first one.
+    * @param i The index of the argument.
+    * @return The argument, as it would appear in getParameters().
+    * @throws ArrayIndexOutOfBoundsException if there is no such argument.
+    */
+   public Object getParameter(int i) throws DBusException
+   {
+      if (null != args) return args[i];
+      if (null == argofs) indexParameters();
+      if (i < 0 || i >= lazyargs.length) throw new ArrayIndexOutOfBoundsException(i);
+      if (null == lazyargs[i]) {
+         SignatureCodec c = SignatureCodec.get((String) headers.get(HeaderField.SIGNATURE))[i];
+         lazyargs[i] = extractone(c, body, new int[] { argofs[i] }, false);
+      }
+      return lazyargs[i];
+   }
    protected void setArgs(Object[] args) { this.args = args; }
+   /**
+    * Releases the raw header bytes of a received message once nothing
+    * will need to re-send it.
+    */
+   void releaseHeader()
+   {
+      if (rawheaderpooled) MessageReader.getBufferPool().give(rawheader);
+      rawheader = null;
+      rawheaderpooled = false;
+   }
    /**
     * Warning, do not use this method unless you really know what you are doing.
     */
    public void setSource(String source) throws DBusException
    {
       if (null != body) {
-         wiredata = new byte[BUFFERINCREMENT][];
-         bufferuse = 0;
-         bytecounter = 0;
-         preallocate(12);
-         append("yyyyuu", big ? Endian.BIG : Endian.LITTLE, type, flags, protover, bodylen, serial);
          headers.put(HeaderField.SENDER, source);
+         if (null != rawheader && patchSource(source)) return;
+         setWireData(NO_WIREDATA);
+         append("yyyyuu", big ? Endian.BIG : Endian.LITTLE, type, flags, protover, bodylen, serial);
          Object[][] newhead = new Object[headers.size()][];
          int i = 0;
          for (Byte b: headers.keySet()) {
@@ -1124,9 +1346,90 @@ public class Message
             newhead[i][1] = headers.get(b);
             i++;
          }
-         append("a(yv)", (Object) newhead);
+         appendHeader("a(yv)", (Object) newhead);
          pad((byte) 8);
          appendBytes(body);
       }
    }
+   /**
+    * Rebuild the wire data from the raw header bytes, copying every field
+    * except SENDER as it is and adding the new SENDER field at the end.
+    * The body is re-used without copying.
+    * @return false if the header has a field this cannot skip over, in which
+    * case nothing is changed.
+    */
+   private boolean patchSource(String source) throws DBusException
+   {
+      byte[] raw = rawheader;
+      int end = rawheaderofs+rawheaderlen;
+      int sstart = -1;
+      int snext = -1;
+      int o = rawheaderofs;
+      // every field is a struct, so starts on an 8 byte boundary
+      while (o < end) {
+         if (1 != raw[o+1]) return false;
+         int v = o+4;
+         switch (raw[o+2]) {
+            case ArgumentType.STRING:
+            case ArgumentType.OBJECT_PATH:
+               v += 4+(int) demarshallint(raw, v, 4)+1;
+               break;
+            case ArgumentType.SIGNATURE:
+               v += 1+(raw[v] & 0xFF)+1;
+               break;
+            case ArgumentType.UINT32:
+               v += 4;
+               break;
+            default:
+               return false;
+         }
+         if (HeaderField.SENDER == raw[o]) {
+            sstart = o;
+            snext = Math.min(align(v, ArgumentType.STRUCT1), end);
+         }
+         o = align(v, ArgumentType.STRUCT1);
+      }
+      byte[] sourcebytes;
+      try {
+         sourcebytes = source.getBytes("UTF-8");
+      } catch (UnsupportedEncodingException UEe) {
+         if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(UEe);
+         throw new DBusException(_("System does not support UTF-8 encoding"));
+      }
+
+      // copy the fixed header and the kept fields
+      int kept;
+      if (-1 == sstart) kept = rawheaderlen;
+      else kept = (sstart-rawheaderofs)+(end-snext);
+      int fieldofs = align(16+kept, ArgumentType.STRUCT1);
+      int headerlen = fieldofs-16+8+sourcebytes.length+1;
+      byte[] head = new byte[align(16+headerlen, ArgumentType.STRUCT1)];
+      head[0] = big ? Endian.BIG : Endian.LITTLE;
+      head[1] = type;
+      head[2] = flags;
+      head[3] = protover;
+      marshallint(bodylen, head, 4, 4);
+      marshallint(serial, head, 8, 4);
+      marshallint(headerlen, head, 12, 4);
+      if (-1 == sstart)
+         System.arraycopy(raw, rawheaderofs, head, 16, rawheaderlen);
+      else {
+         System.arraycopy(raw, rawheaderofs, head, 16, sstart-rawheaderofs);
+         System.arraycopy(raw, snext, head, 16+sstart-rawheaderofs, end-snext);
+      }
+
+      // append the new sender field
+      head[fieldofs] = HeaderField.SENDER;
+      head[fieldofs+1] = 1;
+      head[fieldofs+2] = ArgumentType.STRING;
+      marshallint(sourcebytes.length, head, fieldofs+4, 4);
+      System.arraycopy(sourcebytes, 0, head, fieldofs+8, sourcebytes.length);
+
+      releaseHeader();
+      rawheader = head;
+      rawheaderofs = 16;
+      rawheaderlen = headerlen;
+      setWireData(new byte[][] { head, body });
+      return true;
+   }
 }
@@ -17,6 +17,8 @@ import java.io.EOFException;
 import java.io.InputStream;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.text.MessageFormat;
 
 import cx.ath.matthew.debug.Debug;
@@ -28,30 +30,70 @@ import org.freedesktop.dbus.exceptions.MessageProtocolVersionException;
 
 public class MessageReader
 {
+   /** Number of free buffers kept for each size class of the receive pool. */
+   private static final int POOL_DEPTH = 32;
+   /** Size of the direct buffer used when reading from a channel. */
+   private static final int CHANNEL_BUFFER_SIZE = 8192;
+   private static final BufferPool pool = new BufferPool(POOL_DEPTH);
+   /**
+    * Returns the pool from which header buffers are taken when reading
+    * messages, for checking its hit and miss counters. Messages hand their
+    * buffer back when they are re-sourced or no longer needed.
+    */
+   public static BufferPool getBufferPool()
+   {
+      return pool;
+   }
    private InputStream in;
-   private byte[] buf = null;
-   private byte[] tbuf = null;
+   private ReadableByteChannel channel;
+   private ByteBuffer inbuf;
+   private byte[] buf = new byte[16];
    private byte[] header = null;
+   private int headerlen = 0;
    private byte[] body = null;
-   private int[] len = new int[4];
+   private int[] len = new int[3];
    public MessageReader(InputStream in)
    {
       this.in = new BufferedInputStream(in);
    }
+   /**
+    * Read messages from a channel, through a direct buffer.
+    */
+   public MessageReader(ReadableByteChannel channel)
+   {
+      this.channel = channel;
+      inbuf = ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE);
+      inbuf.flip();
+   }
+   private int read(byte[] b, int ofs, int len) throws IOException
+   {
+      if (null == channel) return in.read(b, ofs, len);
+      if (!inbuf.hasRemaining()) {
+         // large reads skip the intermediate buffer
+         if (len >= inbuf.capacity())
+            return channel.read(ByteBuffer.wrap(b, ofs, len));
+         inbuf.clear();
+         int rv = channel.read(inbuf);
+         inbuf.flip();
+         if (rv <= 0) return rv;
+      }
+      if (len > inbuf.remaining()) len = inbuf.remaining();
+      inbuf.get(b, ofs, len);
+      return len;
+   }
    public Message readMessage() throws IOException, DBusException
    {
       int rv;
-      /* Read the 12 byte fixed header, retrying as neccessary */
-      if (null == buf) { buf = new byte[12]; len[0] = 0; }
-      if (len[0] < 12) {
-         try { rv = in.read(buf, len[0], 12-len[0]); }
+      /* Read the 12 byte fixed header and the length of the variable header, retrying as neccessary */
+      if (len[0] < 16) {
+         try { rv = read(buf, len[0], 16-len[0]); }
          catch (SocketTimeoutException STe) { return null; }
          if (-1 == rv) throw new EOFException(_("Underlying transport returned EOF"));
          len[0] += rv;
       }
       if (len[0] == 0) return null;
-      if (len[0] < 12) {
-         if (Debug.debug) Debug.print(Debug.DEBUG, "Only got "+len[0]+" of 12 bytes of header");
+      if (len[0] < 16) {
+         if (Debug.debug) Debug.print(Debug.DEBUG, "Only got "+len[0]+" of 16 bytes of header");
          return null;
       }
 
@@ -60,116 +102,91 @@ public class MessageReader
       byte type = buf[1];
       byte protover = buf[3];
       if (protover > Message.PROTOCOL) {
-         buf = null;
+         len[0] = 0;
          throw new MessageProtocolVersionException(MessageFormat.format(_("Protocol version {0} is unsupported"), new Object[] { protover }));
       }
 
-      /* Read the length of the variable header */
-      if (null == tbuf) { tbuf = new byte[4]; len[1] = 0; }
-      if (len[1] < 4) {
-         try { rv = in.read(tbuf, len[1], 4-len[1]); }
-         catch (SocketTimeoutException STe) { return null; }
-         if (-1 == rv) throw new EOFException(_("Underlying transport returned EOF"));
-         len[1] += rv;
-      }
-      if (len[1] < 4) {
-         if (Debug.debug) Debug.print(Debug.DEBUG, "Only got "+len[1]+" of 4 bytes of header");
-         return null;
-      }
-
-      /* Parse the variable header length */
-      int headerlen = 0;
+      /* Read the variable header into a pooled buffer */
       if (null == header) {
-         headerlen = (int) Message.demarshallint(tbuf, 0, endian, 4);
+         headerlen = (int) Message.demarshallint(buf, 12, endian, 4);
          if (0 != headerlen % 8)
             headerlen += 8-(headerlen%8);
-      } else
-         headerlen = header.length-8;
-
-      /* Read the variable header */
-      if (null == header) {
-         header = new byte[headerlen+8]; 
-         System.arraycopy(tbuf, 0, header, 0, 4);
-         len[2] = 0; 
+         header = pool.take(headerlen+8);
+         System.arraycopy(buf, 12, header, 0, 4);
+         len[1] = 0; 
       }
-      if (len[2] < headerlen) {
-         try { rv = in.read(header, 8+len[2], headerlen-len[2]); }
+      if (len[1] < headerlen) {
+         try { rv = read(header, 8+len[1], headerlen-len[1]); }
          catch (SocketTimeoutException STe) { return null; }
          if (-1 == rv) throw new EOFException(_("Underlying transport returned EOF"));
-         len[2] += rv;
+         len[1] += rv;
       }
-      if (len[2] < headerlen) {
-         if (Debug.debug) Debug.print(Debug.DEBUG, "Only got "+len[2]+" of "+headerlen+" bytes of header");
+      if (len[1] < headerlen) {
+         if (Debug.debug) Debug.print(Debug.DEBUG, "Only got "+len[1]+" of "+headerlen+" bytes of header");
          return null;
       }
 
       /* Read the body */
-      int bodylen = 0;
-      if (null == body) bodylen = (int) Message.demarshallint(buf, 4, endian, 4);
-      if (null == body) { body=new byte[bodylen]; len[3] = 0; }
-      if (len[3] < body.length) {
-         try { rv = in.read(body, len[3], body.length-len[3]); }
+      if (null == body) { body = new byte[(int) Message.demarshallint(buf, 4, endian, 4)]; len[2] = 0; }
+      if (len[2] < body.length) {
+         try { rv = read(body, len[2], body.length-len[2]); }
          catch (SocketTimeoutException STe) { return null; }
          if (-1 == rv) throw new EOFException(_("Underlying transport returned EOF"));
-         len[3] += rv;
+         len[2] += rv;
       }
-      if (len[3] < body.length) {
-         if (Debug.debug) Debug.print(Debug.DEBUG, "Only got "+len[3]+" of "+body.length+" bytes of body");
+      if (len[2] < body.length) {
+         if (Debug.debug) Debug.print(Debug.DEBUG, "Only got "+len[2]+" of "+body.length+" bytes of body");
          return null;
       }
 
       Message m;
-      switch (type) {
-         case Message.MessageType.METHOD_CALL:
-            m = new MethodCall();
-            break;
-         case Message.MessageType.METHOD_RETURN:
-            m = new MethodReturn();
-            break;
-         case Message.MessageType.SIGNAL:
-            m = new DBusSignal();
-            break;
-         case Message.MessageType.ERROR:
-            m = new Error();
-            break;
-         default:
-            throw new MessageTypeException(MessageFormat.format(_("Message type {0} unsupported"), new Object[] {type}));
-      }
-      if (Debug.debug) {
-         Debug.print(Debug.VERBOSE, Hexdump.format(buf));
-         Debug.print(Debug.VERBOSE, Hexdump.format(tbuf));
-         Debug.print(Debug.VERBOSE, Hexdump.format(header));
-         Debug.print(Debug.VERBOSE, Hexdump.format(body));
-      }
       try {
+         switch (type) {
+            case Message.MessageType.METHOD_CALL:
+               m = new MethodCall();
+               break;
+            case Message.MessageType.METHOD_RETURN:
+               m = new MethodReturn();
+               break;
+            case Message.MessageType.SIGNAL:
+               m = new DBusSignal();
+               break;
+            case Message.MessageType.ERROR:
+               m = new Error();
+               break;
+            default:
+               throw new MessageTypeException(MessageFormat.format(_("Message type {0} unsupported"), new Object[] {type}));
+         }
+         if (Debug.debug) {
+            Debug.print(Debug.VERBOSE, Hexdump.format(buf));
+            Debug.print(Debug.VERBOSE, Hexdump.toHex(header, 0, headerlen+8));
+            Debug.print(Debug.VERBOSE, Hexdump.format(body));
+         }
          m.populate(buf, header, body);
       } catch (DBusException DBe) {
          if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
-         buf = null;
-         tbuf = null;
-         body = null;
-         header = null;
+         pool.give(header);
          throw DBe;
       } catch (RuntimeException Re) {
          if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, Re);
-         buf = null;
-         tbuf = null;
-         body = null;
-         header = null;
+         pool.give(header);
          throw Re;
+      } finally {
+         /* populate does not keep the fixed header, so it can be re-used straight away.
+            The variable header now belongs to the message, see Message.releaseHeader */
+         header = null;
+         body = null;
+         len[0] = 0;
       }
       if (Debug.debug) {
          Debug.print(Debug.INFO, "=> "+m);
       }
-      buf = null;
-      tbuf = null;
-      body = null;
-      header = null;
       return m;
    }
    public void close() throws IOException
    {
       if (Debug.debug) Debug.print(Debug.INFO, "Closing Message Reader");
-      in.close();
+      if (null == channel) in.close();
+      else channel.close();
    }
 }
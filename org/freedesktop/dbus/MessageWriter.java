@@ -13,6 +13,8 @@ package org.freedesktop.dbus;
 import java.io.BufferedOutputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 
 import cx.ath.matthew.debug.Debug;
 import cx.ath.matthew.unix.USOutputStream;
@@ -22,6 +24,12 @@ public class MessageWriter
 {
    private OutputStream out;
 	private boolean isunix;
+   private GatheringByteChannel channel;
+   private ByteBuffer[] bufs;
+   /* buffers waiting for flush on channels and unix sockets */
+   private byte[][] pending = new byte[16][];
+   private int npending = 0;
+   private long pendingbytes = 0;
    public MessageWriter(OutputStream out)
    {
 		this.out = out;
@@ -34,35 +42,104 @@ public class MessageWriter
 		if (!this.isunix)
 			this.out = new BufferedOutputStream(this.out);
    }
+   /**
+    * Write messages to a channel, with one gathering write per flush.
+    */
+   public MessageWriter(GatheringByteChannel channel)
+   {
+      this.channel = channel;
+      this.bufs = new ByteBuffer[0];
+   }
+   /**
+    * Write a message and flush it, along with any messages already
+    * buffered by write.
+    */
    public void writeMessage(Message m) throws IOException
+   {
+      write(m);
+      flush();
+   }
+   /**
+    * Buffer a message to be sent by the next flush. Streams may send
+    * some of it before then.
+    */
+   public void write(Message m) throws IOException
    {
       if (Debug.debug) {
          Debug.print(Debug.INFO, "<= "+m);
       }
       if (null == m) return;
-      if (null == m.getWireData()) {
+      byte[][] wiredata = m.getWireData();
+      if (null == wiredata) {
          if (Debug.debug) Debug.print(Debug.WARN, "Message "+m+" wire-data was null!");
          return;
       }
-      if (isunix) {
-         if (Debug.debug) {
-            Debug.print(Debug.DEBUG, "Writing all "+m.getWireData().length+" buffers simultaneously to Unix Socket");
-            for (byte[] buf: m.getWireData()) 
-               Debug.print(Debug.VERBOSE, "("+buf+"):"+ (null==buf? "": Hexdump.format(buf)));
+      if (null != channel || isunix) {
+         for (int i = 0; i < wiredata.length && null != wiredata[i]; i++) {
+            if (Debug.debug) Debug.print(Debug.VERBOSE, "("+wiredata[i]+"):"+Hexdump.format(wiredata[i]));
+            if (npending == pending.length) {
+               byte[][] newpending = new byte[pending.length*2][];
+               System.arraycopy(pending, 0, newpending, 0, npending);
+               pending = newpending;
+            }
+            pending[npending++] = wiredata[i];
+            pendingbytes += wiredata[i].length;
          }
-         ((USOutputStream) out).write(m.getWireData());
       } else
-         for (byte[] buf: m.getWireData()) {
+         for (byte[] buf: wiredata) {
             if (Debug.debug)
                Debug.print(Debug.VERBOSE, "("+buf+"):"+ (null==buf? "": Hexdump.format(buf)));
             if (null == buf) break;
             out.write(buf);
+            pendingbytes += buf.length;
          }
-      out.flush();
+   }
+   /**
+    * The number of bytes written since the last flush.
+    */
+   public long getPendingBytes()
+   {
+      return pendingbytes;
+   }
+   /**
+    * Send everything buffered by write, with a single gathering write
+    * if the transport supports it.
+    */
+   public void flush() throws IOException
+   {
+      try {
+         if (null != channel) writeChannel();
+         else if (isunix) {
+            if (0 == npending) return;
+            if (Debug.debug) Debug.print(Debug.DEBUG, "Writing all "+npending+" buffers simultaneously to Unix Socket");
+            ((USOutputStream) out).write(pending, 0, npending);
+         } else
+            out.flush();
+      } finally {
+         for (int i = 0; i < npending; i++) pending[i] = null;
+         npending = 0;
+         pendingbytes = 0;
+      }
+   }
+   private void writeChannel() throws IOException
+   {
+      if (0 == npending) return;
+      if (bufs.length < npending) bufs = new ByteBuffer[pending.length];
+      for (int i = 0; i < npending; i++)
+         bufs[i] = ByteBuffer.wrap(pending[i]);
+      long remaining = pendingbytes;
+      if (Debug.debug) Debug.print(Debug.DEBUG, "Writing "+npending+" buffers ("+remaining+" bytes) in a gathering write");
+      try {
+         while (remaining > 0)
+            remaining -= channel.write(bufs, 0, npending);
+      } finally {
+         for (int i = 0; i < npending; i++) bufs[i] = null;
+      }
    }
    public void close() throws IOException
    {
       if (Debug.debug) Debug.print(Debug.INFO, "Closing Message Writer");
-      out.close();
+      if (null == channel) out.close();
+      else channel.close();
    }
 }
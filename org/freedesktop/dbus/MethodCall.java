@@ -16,7 +16,6 @@ import java.util.Vector;
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.exceptions.MessageFormatException;
 import cx.ath.matthew.debug.Debug;
-import cx.ath.matthew.utils.Hexdump;
 
 public class MethodCall extends Message
 {
@@ -27,7 +26,11 @@ public class MethodCall extends Message
    }
    public MethodCall(String source, String dest, String path, String iface, String member, byte flags, String sig, Object... args) throws DBusException
    {
-      super(Message.Endian.BIG, Message.MessageType.METHOD_CALL, flags);
+      this(Message.getDefaultEndianness(), source, dest, path, iface, member, flags, sig, args);
+   }
+   public MethodCall(byte endian, String source, String dest, String path, String iface, String member, byte flags, String sig, Object... args) throws DBusException
+   {
+      super(endian, Message.MessageType.METHOD_CALL, flags);
 
       if (null == member || null == path)
          throw new MessageFormatException(_("Must specify destination, path and function name to MethodCalls."));
@@ -62,16 +65,14 @@ public class MethodCall extends Message
          setArgs(args);
       }
 
-      byte[] blen = new byte[4];
-      appendBytes(blen);
-      append("ua(yv)", serial, hargs.toArray());
+      int blen = reserveLength();
+      appendHeader("ua(yv)", serial, hargs.toArray());
       pad((byte)8);
 
       long c = bytecounter;
       if (null != sig) append(sig, args);
       if (Debug.debug) Debug.print(Debug.DEBUG, "Appended body, type: "+sig+" start: "+c+" end: "+bytecounter+" size: "+(bytecounter-c));
-      marshallint(bytecounter-c, blen, 0, 4);
-      if (Debug.debug) Debug.print("marshalled size ("+blen+"): "+Hexdump.format(blen));
+      setLength(blen, bytecounter-c);
    }
    private static long REPLY_WAIT_TIMEOUT = 20000;
    /**
@@ -84,6 +85,29 @@ public class MethodCall extends Message
       REPLY_WAIT_TIMEOUT = timeout;
    }
    Message reply = null;
+   private long timeout = 0;
+   private DBusAsyncReply<?> async = null;
+   /* Links in the connection's TimeoutWheel, guarded by the wheel. */
+   MethodCall wheelnext = null;
+   MethodCall wheelprev = null;
+   long wheeltick;
+   int wheelslot = -1;
+   /**
+    * Set how long to wait for a reply to this call before failing it
+    * with a NoReply error. Must be called before the call is sent.
+    * @param timeout The timeout in ms, or 0 to use the default.
+    */
+   public void setTimeout(long timeout)
+   {
+      this.timeout = timeout;
+   }
+   /**
+    * Returns how long to wait for a reply to this call, in ms.
+    */
+   public long getTimeout()
+   {
+      return 0 < timeout ? timeout : REPLY_WAIT_TIMEOUT;
+   }
    public synchronized boolean hasReply()
    {
       return null != reply;
@@ -96,31 +120,51 @@ public class MethodCall extends Message
    public synchronized Message getReply(long timeout)
    {
       if (Debug.debug) Debug.print(Debug.VERBOSE, "Blocking on "+this);
-      if (null != reply) return reply;
-      try {
-         wait(timeout);
-         return reply;
-      } catch (InterruptedException Ie) { return reply; }
+      long end = System.currentTimeMillis() + timeout;
+      long left = timeout;
+      while (null == reply && 0 < left) {
+         try {
+            wait(left);
+         } catch (InterruptedException Ie) { 
+            break;
+         }
+         left = end - System.currentTimeMillis();
+      }
+      return reply;
    }
    /**
     * Block (if neccessary) for a reply.
     * Default timeout is 20s, or can be configured with setDefaultTimeout()
+    * or setTimeout()
     * @return The reply to this MethodCall, or null if a timeout happens.
     */
-   public synchronized Message getReply()
+   public Message getReply()
    {
-      if (Debug.debug) Debug.print(Debug.VERBOSE, "Blocking on "+this);
-      if (null != reply) return reply;
-      try {
-         wait(REPLY_WAIT_TIMEOUT);
-         return reply;
-      } catch (InterruptedException Ie) { return reply; }
+      return getReply(getTimeout());
    }
-   protected synchronized void setReply(Message reply)
+   /**
+    * Have the reply passed on to an async handle when it arrives.
+    */
+   void setAsyncReply(DBusAsyncReply<?> async)
+   {
+      Message r;
+      synchronized (this) {
+         this.async = async;
+         r = reply;
+      }
+      if (null != r) async.setReply(r);
+   }
+   protected void setReply(Message reply)
    {
       if (Debug.debug) Debug.print(Debug.VERBOSE, "Setting reply to "+this+" to "+reply);
-      this.reply = reply;
-      notifyAll();
+      DBusAsyncReply<?> a;
+      synchronized (this) {
+         this.reply = reply;
+         a = async;
+         notifyAll();
+      }
+      // outside the lock, as the handle locks itself and then checks us
+      if (null != a) a.setReply(reply);
    }
 
 }
@@ -0,0 +1,93 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+
+import cx.ath.matthew.debug.Debug;
+
+/**
+ * Calls one exported method. Everything which depends only on the
+ * method is worked out when the object is exported, so handling a call
+ * only converts the arguments which need it and invokes the method.
+ */
+class MethodInvoker
+{
+   final Method method;
+   private final Type[] types;
+   private final boolean deserialize;
+   private final boolean isvoid;
+   private final String returnsig;
+   private final Type[] returntypes;
+   private final boolean convertreturn;
+   public MethodInvoker(Method m) throws DBusException
+   {
+      method = m;
+      types = m.getGenericParameterTypes();
+      boolean d = false;
+      for (Type t: types)
+         if (Marshalling.needsDeSerialization(t)) d = true;
+      deserialize = d;
+      isvoid = Void.TYPE.equals(m.getReturnType());
+      if (isvoid) {
+         returnsig = null;
+         returntypes = null;
+         convertreturn = false;
+      } else {
+         StringBuffer sb = new StringBuffer();
+         for (String s: Marshalling.getDBusType(m.getGenericReturnType()))
+            sb.append(s);
+         returnsig = sb.toString();
+         returntypes = new Type[] { m.getGenericReturnType() };
+         convertreturn = Marshalling.needsConversion(returntypes[0]);
+      }
+      // skip the access checks on every call if we are allowed to
+      try {
+         m.setAccessible(true);
+      } catch (SecurityException Se) {
+         if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, Se);
+      }
+   }
+   /**
+    * Convert the arguments of a call to the types the method takes.
+    */
+   public Object[] deSerialize(Object[] parameters, AbstractConnection conn) throws Exception
+   {
+      if (!deserialize) return parameters;
+      return Marshalling.deSerializeParameters(parameters, types, conn);
+   }
+   public Object invoke(Object object, Object[] parameters) throws IllegalAccessException, InvocationTargetException
+   {
+      return method.invoke(object, parameters);
+   }
+   public boolean isVoid() { return isvoid; }
+   /**
+    * The signature of the value this method returns.
+    */
+   public String getReturnSig() { return returnsig; }
+   /**
+    * Convert a value returned by the method into reply parameters.
+    */
+   public Object[] convertReturn(Object result, AbstractConnection conn) throws DBusException
+   {
+      Object[] rv = new Object[] { result };
+      if (!convertreturn) return rv;
+      return Marshalling.convertParameters(rv, returntypes, conn);
+   }
+   public String toString()
+   {
+      return method.toString();
+   }
+}
@@ -22,7 +22,11 @@ public class MethodReturn extends Message
    }
    public MethodReturn(String source, String dest, long replyserial, String sig, Object... args) throws DBusException
    {
-      super(Message.Endian.BIG, Message.MessageType.METHOD_RETURN, (byte) 0);
+      this(Message.getDefaultEndianness(), source, dest, replyserial, sig, args);
+   }
+   public MethodReturn(byte endian, String source, String dest, long replyserial, String sig, Object... args) throws DBusException
+   {
+      super(endian, Message.MessageType.METHOD_RETURN, (byte) 0);
 
       headers.put(Message.HeaderField.REPLY_SERIAL,replyserial);
 
@@ -45,14 +49,13 @@ public class MethodReturn extends Message
          setArgs(args);
       }
 
-      byte[] blen = new byte[4];
-      appendBytes(blen);
-      append("ua(yv)", serial, hargs.toArray());
+      int blen = reserveLength();
+      appendHeader("ua(yv)", serial, hargs.toArray());
       pad((byte)8);
 
       long c = bytecounter;
       if (null != sig) append(sig, args);
-      marshallint(bytecounter-c, blen, 0, 4);
+      setLength(blen, bytecounter-c);
    }
    public MethodReturn(MethodCall mc, String sig, Object... args) throws DBusException
    {
@@ -60,7 +63,11 @@ public class MethodReturn extends Message
    }
    public MethodReturn(String source, MethodCall mc, String sig, Object... args) throws DBusException
    {
-      this(source, mc.getSource(), mc.getSerial(), sig, args);
+      this(Message.getDefaultEndianness(), source, mc, sig, args);
+   }
+   public MethodReturn(byte endian, String source, MethodCall mc, String sig, Object... args) throws DBusException
+   {
+      this(endian, source, mc.getSource(), mc.getSerial(), sig, args);
       this.call = mc;
    }
    MethodCall call;
@@ -0,0 +1,158 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+/**
+ * Provides a thread-safe serial =&gt; MethodCall map for calls awaiting
+ * a reply. Keys are spread over segments, each an open-addressing table
+ * of primitive longs, so lookup and removal are constant time and do not
+ * allocate. Serials must be non-zero.
+ */
+class PendingCallMap
+{
+   private static final int SEGMENTS = 16;
+
+   private static class Segment
+   {
+      private long[] keys;
+      private MethodCall[] values;
+      private int size;
+      private int init_size;
+      Segment(int initial_size)
+      {
+         init_size = initial_size;
+         keys = new long[initial_size];
+         values = new MethodCall[initial_size];
+      }
+      private static int slot(long key, int mask)
+      {
+         long h = key * 0x9E3779B97F4A7C15L;
+         return ((int) (h >>> 32)) & mask;
+      }
+      private void rehash(int capacity)
+      {
+         long[] oldkeys = keys;
+         MethodCall[] oldvalues = values;
+         keys = new long[capacity];
+         values = new MethodCall[capacity];
+         for (int i = 0; i < oldkeys.length; i++)
+            if (0 != oldkeys[i]) {
+               int j = slot(oldkeys[i], capacity-1);
+               while (0 != keys[j]) j = (j+1) & (capacity-1);
+               keys[j] = oldkeys[i];
+               values[j] = oldvalues[i];
+            }
+      }
+      private int find(long key)
+      {
+         int mask = keys.length-1;
+         int i = slot(key, mask);
+         while (0 != keys[i]) {
+            if (key == keys[i]) return i;
+            i = (i+1) & mask;
+         }
+         return -1;
+      }
+      synchronized void put(long key, MethodCall m)
+      {
+         if (2*(size+1) > keys.length) rehash(2*keys.length);
+         int mask = keys.length-1;
+         int i = slot(key, mask);
+         while (0 != keys[i] && key != keys[i]) i = (i+1) & mask;
+         if (0 == keys[i]) size++;
+         keys[i] = key;
+         values[i] = m;
+      }
+      synchronized MethodCall remove(long key)
+      {
+         int i = find(key);
+         if (-1 == i) return null;
+         MethodCall m = values[i];
+         delete(i);
+         if (keys.length > init_size && 8*size < keys.length)
+            rehash(keys.length/2);
+         return m;
+      }
+      /* Remove the entry at i, shifting back any later entries in its run
+         so lookups never need tombstones. */
+      private void delete(int i)
+      {
+         int mask = keys.length-1;
+         int j = i;
+         while (true) {
+            j = (j+1) & mask;
+            if (0 == keys[j]) break;
+            int k = slot(keys[j], mask);
+            if ((j > i && (k <= i || k > j)) || (j < i && k <= i && k > j)) {
+               keys[i] = keys[j];
+               values[i] = values[j];
+               i = j;
+            }
+         }
+         keys[i] = 0;
+         values[i] = null;
+         size--;
+      }
+      synchronized int keys(long[] into, int ofs)
+      {
+         for (int i = 0; i < keys.length && ofs < into.length; i++)
+            if (0 != keys[i]) into[ofs++] = keys[i];
+         return ofs;
+      }
+   }
+
+   private final Segment[] segments;
+   public PendingCallMap(int initial_size)
+   {
+      int capacity = 2;
+      while (capacity*SEGMENTS < initial_size) capacity *= 2;
+      segments = new Segment[SEGMENTS];
+      for (int i = 0; i < SEGMENTS; i++)
+         segments[i] = new Segment(capacity);
+   }
+   private Segment segment(long key)
+   {
+      return segments[((int) (key ^ (key >>> 32))) & (SEGMENTS-1)];
+   }
+   public void put(long key, MethodCall m)
+   {
+      segment(key).put(key, m);
+   }
+   /**
+    * Remove a call.
+    * @return The call, or null if there is no call with that serial.
+    */
+   public MethodCall remove(long key)
+   {
+      return segment(key).remove(key);
+   }
+   public int size()
+   {
+      int size = 0;
+      for (Segment s: segments)
+         synchronized (s) { size += s.size; }
+      return size;
+   }
+   /**
+    * Returns a snapshot of the serials currently in the map.
+    */
+   public long[] getKeys()
+   {
+      long[] keys = new long[size()];
+      int n = 0;
+      for (Segment s: segments)
+         n = s.keys(keys, n);
+      if (n == keys.length) return keys;
+      long[] rv = new long[n];
+      System.arraycopy(keys, 0, rv, 0, n);
+      return rv;
+   }
+}
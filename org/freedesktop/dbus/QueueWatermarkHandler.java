@@ -0,0 +1,32 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+/**
+ * Told when a connection's outgoing queue fills up and drains, so that
+ * whatever is producing messages can slow down and speed up again.
+ * Calls alternate, starting with high(). They are made on the thread
+ * which queued or sent the message which crossed the watermark, which
+ * may be the connection's sending thread, so they must not block.
+ */
+public interface QueueWatermarkHandler
+{
+   /**
+    * The queue has reached its high watermark.
+    * @param messages The number of messages queued.
+    */
+   public void high(int messages);
+   /**
+    * The queue has drained to its low watermark.
+    * @param messages The number of messages queued.
+    */
+   public void low(int messages);
+}
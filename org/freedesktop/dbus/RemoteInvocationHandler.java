@@ -15,10 +15,16 @@ import static org.freedesktop.dbus.Gettext._;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Proxy;
 import java.lang.reflect.Type;
 import java.text.MessageFormat;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
 
 import org.freedesktop.DBus;
 import org.freedesktop.dbus.exceptions.DBusException;
@@ -32,18 +38,124 @@ class RemoteInvocationHandler implements InvocationHandler
    public static final int CALL_TYPE_SYNC = 0;
    public static final int CALL_TYPE_ASYNC = 1;
    public static final int CALL_TYPE_CALLBACK = 2;
+   /* What invoke does with each method. */
+   private static final int KIND_REMOTE = 0;
+   private static final int KIND_ISREMOTE = 1;
+   private static final int KIND_CLONE = 2;
+   private static final int KIND_EQUALS = 3;
+   private static final int KIND_FINALIZE = 4;
+   private static final int KIND_GETCLASS = 5;
+   private static final int KIND_HASHCODE = 6;
+   private static final int KIND_NOTIFY = 7;
+   private static final int KIND_NOTIFYALL = 8;
+   private static final int KIND_WAIT = 9;
+   private static final int KIND_TOSTRING = 10;
+   private static final Map<String,Integer> kinds = new HashMap<String,Integer>();
+   static {
+      kinds.put("isRemote", KIND_ISREMOTE);
+      kinds.put("clone", KIND_CLONE);
+      kinds.put("equals", KIND_EQUALS);
+      kinds.put("finalize", KIND_FINALIZE);
+      kinds.put("getClass", KIND_GETCLASS);
+      kinds.put("hashCode", KIND_HASHCODE);
+      kinds.put("notify", KIND_NOTIFY);
+      kinds.put("notifyAll", KIND_NOTIFYALL);
+      kinds.put("wait", KIND_WAIT);
+      kinds.put("toString", KIND_TOSTRING);
+   }
+
+   /**
+    * Everything about calling a method which depends only on the Method,
+    * worked out by reflection once and then re-used for every call.
+    */
+   static class MethodPlan
+   {
+      final int kind;
+      final Type[] types;
+      final String sig;
+      /* Set if the parameter types have no D-Bus equivalent. */
+      final String sigerror;
+      final boolean convert;
+      final String member;
+      final boolean noreply;
+      /* The reply timeout, or 0 for the default. */
+      final long timeout;
+      /* Set if the method returns a Future for the real return type. */
+      final boolean async;
+      final Class<? extends Object> returntype;
+      final Type[] returntypes;
+      private Constructor<? extends Object> tuplecons;
+      @SuppressWarnings("unchecked")
+      MethodPlan(Method m)
+      {
+         Integer k = kinds.get(m.getName());
+         kind = null == k ? KIND_REMOTE : k;
+         types = m.getGenericParameterTypes();
+         String s = null;
+         String e = null;
+         if (types.length > 0) try {
+            s = Marshalling.getDBusType(types);
+         } catch (DBusException DBe) {
+            if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
+            e = DBe.getMessage();
+         }
+         sig = s;
+         sigerror = e;
+         boolean c = false;
+         for (Type t: types)
+            if (Marshalling.needsConversion(t)) c = true;
+         convert = c;
+         if (m.isAnnotationPresent(DBusMemberName.class))
+            member = m.getAnnotation(DBusMemberName.class).value();
+         else
+            member = m.getName();
+         noreply = m.isAnnotationPresent(DBus.Method.NoReply.class);
+         if (m.isAnnotationPresent(DBus.Method.Timeout.class))
+            timeout = m.getAnnotation(DBus.Method.Timeout.class).value();
+         else
+            timeout = 0;
+         Class<? extends Object> rc = m.getReturnType();
+         Type rt = m.getGenericReturnType();
+         async = (Future.class.equals(rc) || DBusAsyncReply.class.equals(rc))
+               && rt instanceof ParameterizedType;
+         if (async) {
+            rt = ((ParameterizedType) rt).getActualTypeArguments()[0];
+            if (rt instanceof Class) rc = (Class<? extends Object>) rt;
+            else if (rt instanceof ParameterizedType) rc = (Class<? extends Object>) ((ParameterizedType) rt).getRawType();
+            else rc = Object.class;
+            if (Void.class.equals(rc)) rc = Void.TYPE;
+         }
+         returntype = rc;
+         returntypes = new Type[] { rt };
+      }
+      Constructor<? extends Object> getTupleConstructor()
+      {
+         if (null == tuplecons) tuplecons = returntype.getConstructors()[0];
+         return tuplecons;
+      }
+   }
+   private static final ConcurrentMap<Method,MethodPlan> plans = new ConcurrentHashMap<Method,MethodPlan>();
+   static MethodPlan getPlan(Method m)
+   {
+      MethodPlan p = plans.get(m);
+      if (null != p) return p;
+      p = new MethodPlan(m);
+      MethodPlan q = plans.putIfAbsent(m, p);
+      return null == q ? p : q;
+   }
+
    public static Object convertRV(String sig, Object[] rp, Method m, AbstractConnection conn) throws DBusException
    {
-      Class<? extends Object> c = m.getReturnType();
+      MethodPlan p = getPlan(m);
+      Class<? extends Object> c = p.returntype;
 
       if (null == rp) { 
          if(null == c || Void.TYPE.equals(c)) return null;
          else throw new DBusExecutionException(_("Wrong return type (got void, expected a value)"));
       } else {
          try { 
-            if (Debug.debug) Debug.print(Debug.VERBOSE, "Converting return parameters from "+Arrays.deepToString(rp)+" to type "+m.getGenericReturnType());
-            rp = Marshalling.deSerializeParameters(rp, 
-                  new Type[] { m.getGenericReturnType() }, conn);
+            if (Debug.debug) Debug.print(Debug.VERBOSE, "Converting return parameters from "+Arrays.deepToString(rp)+" to type "+p.returntypes[0]);
+            rp = Marshalling.deSerializeParameters(rp, p.returntypes, conn);
          }
          catch (Exception e) { 
             if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, e);
@@ -64,7 +176,7 @@ class RemoteInvocationHandler implements InvocationHandler
             if (!Tuple.class.isAssignableFrom(c))
                throw new DBusExecutionException(_("Wrong return type (not expecting Tuple)"));
             
-            Constructor<? extends Object> cons = c.getConstructors()[0];
+            Constructor<? extends Object> cons = p.getTupleConstructor();
             try {
                return cons.newInstance(rp);
             } catch (Exception e) {
@@ -73,14 +185,22 @@ class RemoteInvocationHandler implements InvocationHandler
             }
       }
    }
-   @SuppressWarnings("unchecked")
    public static Object executeRemoteMethod(RemoteObject ro, Method m, AbstractConnection conn, int syncmethod, CallbackHandler callback, Object... args) throws DBusExecutionException
    {
-      Type[] ts = m.getGenericParameterTypes();
-      String sig = null;
-      if (ts.length > 0) try {
-         sig = Marshalling.getDBusType(ts);
-         args = Marshalling.convertParameters(args, ts, conn);
+      return executeRemoteMethod(ro, m, getPlan(m), conn, syncmethod, callback, 0, args);
+   }
+   static Object executeRemoteMethod(RemoteObject ro, Method m, AbstractConnection conn, int syncmethod, CallbackHandler<?> callback, long timeout, Object... args) throws DBusExecutionException
+   {
+      return executeRemoteMethod(ro, m, getPlan(m), conn, syncmethod, callback, timeout, args);
+   }
+   @SuppressWarnings("unchecked")
+   /* timeout overrides the method's own timeout unless it is 0 */
+   static Object executeRemoteMethod(RemoteObject ro, Method m, MethodPlan p, AbstractConnection conn, int syncmethod, CallbackHandler<?> callback, long timeout, Object... args) throws DBusExecutionException
+   {
+      if (null != p.sigerror)
+         throw new DBusExecutionException(_("Failed to construct D-Bus type: ")+p.sigerror);
+      if (p.convert) try {
+         args = Marshalling.convertParameters(args, p.types, conn);
       } catch (DBusException DBe) {
          throw new DBusExecutionException(_("Failed to construct D-Bus type: ")+DBe.getMessage());
       }
@@ -88,21 +208,10 @@ class RemoteInvocationHandler implements InvocationHandler
       byte flags = 0;
       if (!ro.autostart) flags |= Message.Flags.NO_AUTO_START;
       if (syncmethod == CALL_TYPE_ASYNC) flags |= Message.Flags.ASYNC;
-      if (m.isAnnotationPresent(DBus.Method.NoReply.class)) flags |= Message.Flags.NO_REPLY_EXPECTED;
+      if (p.noreply) flags |= Message.Flags.NO_REPLY_EXPECTED;
       try {
-         String name;
-         if (m.isAnnotationPresent(DBusMemberName.class))
-            name = m.getAnnotation(DBusMemberName.class).value();
-         else
-            name = m.getName();
-         if (null == ro.iface) 
-            call = new MethodCall(ro.busname, ro.objectpath, null, name,flags, sig, args);
-         else {
-            if (null != ro.iface.getAnnotation(DBusInterfaceName.class)) {
-               call = new MethodCall(ro.busname, ro.objectpath, ro.iface.getAnnotation(DBusInterfaceName.class).value(), name, flags, sig, args);
-            } else
-               call = new MethodCall(ro.busname, ro.objectpath, AbstractConnection.dollar_pattern.matcher(ro.iface.getName()).replaceAll("."), name, flags, sig, args);
-         }
+         call = new MethodCall(conn.getEndianness(), null, ro.busname, ro.objectpath, ro.getDBusInterfaceName(), p.member, flags, p.sig, args);
+         call.setTimeout(0 < timeout ? timeout : p.timeout);
       } catch (DBusException DBe) {
          if (AbstractConnection.EXCEPTION_DEBUG && Debug.debug) Debug.print(Debug.ERR, DBe);
          throw new DBusExecutionException(_("Failed to construct outgoing method call: ")+DBe.getMessage());
@@ -111,23 +220,22 @@ class RemoteInvocationHandler implements InvocationHandler
 
       switch (syncmethod) {
          case CALL_TYPE_ASYNC: 
+            // the handle must be listening before the reply can arrive
+            DBusAsyncReply<Object> asr = new DBusAsyncReply<Object>(call, m, conn);
             conn.queueOutgoing(call);
-            return new DBusAsyncReply(call, m, conn);
+            return asr;
          case CALL_TYPE_CALLBACK:
-             synchronized (conn.pendingCallbacks) {
-                if (Debug.debug) Debug.print(Debug.VERBOSE, "Queueing Callback "+callback+" for "+call);
-                conn.pendingCallbacks.put(call, callback);
-                conn.pendingCallbackReplys.put(call, new DBusAsyncReply(call, m, conn));
-             }
-             conn.queueOutgoing(call);
-             return null;
+            if (Debug.debug) Debug.print(Debug.VERBOSE, "Queueing Callback "+callback+" for "+call);
+            new DBusAsyncReply<Object>(call, m, conn).addCallback((CallbackHandler<Object>) callback);
+            conn.queueOutgoing(call);
+            return null;
          case CALL_TYPE_SYNC:
              conn.queueOutgoing(call);
              break;
       }
 
       // get reply
-      if (m.isAnnotationPresent(DBus.Method.NoReply.class)) return null;
+      if (p.noreply) return null;
 
       Message reply = call.getReply();
       if (null == reply) throw new DBus.Error.NoReply(_("No reply within specified time"));
@@ -152,40 +260,42 @@ class RemoteInvocationHandler implements InvocationHandler
    }
    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
    {
-      if (method.getName().equals("isRemote")) return true;
-      else if (method.getName().equals("clone")) return null;
-      else if (method.getName().equals("equals")) {
-         try { 
-            if (1 == args.length)   
-               return new Boolean(remote.equals(((RemoteInvocationHandler) Proxy.getInvocationHandler(args[0])).remote));
-         } catch (IllegalArgumentException IAe) {
-            return Boolean.FALSE;
-         }
-      }
-      else if (method.getName().equals("finalize")) return null;
-      else if (method.getName().equals("getClass")) return DBusInterface.class;
-      else if (method.getName().equals("hashCode")) return remote.hashCode();
-      else if (method.getName().equals("notify")) {
-         remote.notify();
-         return null;
-      } else if (method.getName().equals("notifyAll")) {
-         remote.notifyAll();
-         return null;
-      } else if (method.getName().equals("wait"))  {
-         if (0 == args.length) remote.wait();
-         else if (1 == args.length 
-               && args[0] instanceof Long) remote.wait((Long) args[0]);
-         else if (2 == args.length 
-               && args[0] instanceof Long
-               && args[1] instanceof Integer) 
-            remote.wait((Long) args[0], (Integer) args[1]);
-         if (args.length <= 2)
+      MethodPlan p = getPlan(method);
+      switch (p.kind) {
+         case KIND_ISREMOTE: return true;
+         case KIND_CLONE: return null;
+         case KIND_EQUALS:
+            try { 
+               if (1 == args.length)   
+                  return new Boolean(remote.equals(((RemoteInvocationHandler) Proxy.getInvocationHandler(args[0])).remote));
+            } catch (IllegalArgumentException IAe) {
+               return Boolean.FALSE;
+            }
+            break;
+         case KIND_FINALIZE: return null;
+         case KIND_GETCLASS: return DBusInterface.class;
+         case KIND_HASHCODE: return remote.hashCode();
+         case KIND_NOTIFY:
+            remote.notify();
+            return null;
+         case KIND_NOTIFYALL:
+            remote.notifyAll();
             return null;
+         case KIND_WAIT:
+            if (0 == args.length) remote.wait();
+            else if (1 == args.length 
+                  && args[0] instanceof Long) remote.wait((Long) args[0]);
+            else if (2 == args.length 
+                  && args[0] instanceof Long
+                  && args[1] instanceof Integer) 
+               remote.wait((Long) args[0], (Integer) args[1]);
+            if (args.length <= 2)
+               return null;
+            break;
+         case KIND_TOSTRING:
+            return remote.toString();
       }
-      else if (method.getName().equals("toString"))
-         return remote.toString();
 
-      return executeRemoteMethod(remote, method, conn, CALL_TYPE_SYNC, null, args);
+      return executeRemoteMethod(remote, method, p, conn, p.async ? CALL_TYPE_ASYNC : CALL_TYPE_SYNC, null, 0, args);
    }
 }
-
@@ -16,6 +16,7 @@ class RemoteObject
    String objectpath;
    Class<? extends DBusInterface> iface;
    boolean autostart;
+   private String ifacename;
    public RemoteObject(String busname, String objectpath, Class<? extends DBusInterface> iface, boolean autostart)
    {
       this.busname = busname;
@@ -49,6 +50,21 @@ class RemoteObject
    public String getBusName() { return busname; }
    public String getObjectPath() { return objectpath; }
    public Class<? extends DBusInterface>  getInterface() { return iface; }
+   /**
+    * The D-Bus name of the interface, computed on first use.
+    * @return The name, or null if there is no interface.
+    */
+   String getDBusInterfaceName()
+   {
+      if (null == iface) return null;
+      if (null == ifacename) {
+         if (null != iface.getAnnotation(DBusInterfaceName.class))
+            ifacename = iface.getAnnotation(DBusInterfaceName.class).value();
+         else
+            ifacename = AbstractConnection.dollar_pattern.matcher(iface.getName()).replaceAll(".");
+      }
+      return ifacename;
+   }
    public String toString()
    {
       return busname+":"+objectpath+":"+iface;
@@ -0,0 +1,133 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The signal handlers on a connection, indexed by interface, member,
+ * object path and source in that order. Rules without a path or source
+ * are filed under the empty string, which no path or bus name can be.
+ * The index is never modified once published: adding or removing a
+ * handler copies the maps on the way to it and swaps in a new root,
+ * so looking up the handlers for a signal takes no locks.
+ */
+class SignalIndex
+{
+   private static final String ANY = "";
+   private static final Map<String,Object> EMPTY = new HashMap<String,Object>();
+
+   private volatile Map<String,Object> root = EMPTY;
+
+   private static String key(String s)
+   {
+      return null == s ? ANY : s;
+   }
+   /**
+    * Add a handler for signals matching the given rule; any of the
+    * fields may be null to match anything.
+    */
+   public synchronized void add(String iface, String member, String path, String source, DBusSigHandler<? extends DBusSignal> handler)
+   {
+      String[] keys = new String[] { key(iface), key(member), key(path), key(source) };
+      Map<String,Object> r = update(root, keys, 0, handler, true);
+      root = null == r ? EMPTY : r;
+   }
+   /**
+    * Remove a handler added with the same rule.
+    * @return true if there are no handlers left for the rule.
+    */
+   @SuppressWarnings("unchecked")
+   public synchronized boolean remove(String iface, String member, String path, String source, DBusSigHandler<? extends DBusSignal> handler)
+   {
+      String[] keys = new String[] { key(iface), key(member), key(path), key(source) };
+      Map<String,Object> r = update(root, keys, 0, handler, false);
+      root = null == r ? EMPTY : r;
+      Object o = root;
+      for (int i = 0; null != o && i < keys.length; i++)
+         o = ((Map<String,Object>) o).get(keys[i]);
+      return null == o;
+   }
+   /* Returns m with the handler added or removed along keys from depth,
+      copying each map which changes, or null if that leaves it empty. */
+   @SuppressWarnings("unchecked")
+   private static Map<String,Object> update(Map<String,Object> m, String[] keys, int depth, DBusSigHandler<? extends DBusSignal> handler, boolean add)
+   {
+      Object o = null == m ? null : m.get(keys[depth]);
+      Object n;
+      if (depth == keys.length-1)
+         n = update((DBusSigHandler<? extends DBusSignal>[]) o, handler, add);
+      else
+         n = update((Map<String,Object>) o, keys, depth+1, handler, add);
+      if (n == o) return m;
+      Map<String,Object> c = null == m ? new HashMap<String,Object>() : new HashMap<String,Object>(m);
+      if (null == n) c.remove(keys[depth]);
+      else c.put(keys[depth], n);
+      return c.isEmpty() ? null : c;
+   }
+   private static DBusSigHandler<? extends DBusSignal>[] update(DBusSigHandler<? extends DBusSignal>[] hs, DBusSigHandler<? extends DBusSignal> handler, boolean add)
+   {
+      if (add) {
+         if (null == hs) return new DBusSigHandler<?>[] { handler };
+         DBusSigHandler<? extends DBusSignal>[] c = new DBusSigHandler<?>[hs.length+1];
+         System.arraycopy(hs, 0, c, 0, hs.length);
+         c[hs.length] = handler;
+         return c;
+      }
+      if (null == hs) return null;
+      int i = 0;
+      while (i < hs.length && !hs[i].equals(handler)) i++;
+      if (i == hs.length) return hs;
+      if (1 == hs.length) return null;
+      DBusSigHandler<? extends DBusSignal>[] c = new DBusSigHandler<?>[hs.length-1];
+      System.arraycopy(hs, 0, c, 0, i);
+      System.arraycopy(hs, i+1, c, i, hs.length-i-1);
+      return c;
+   }
+   /**
+    * Returns the handlers for a signal, or null if there are none. The
+    * array may be shared and must not be modified.
+    */
+   @SuppressWarnings("unchecked")
+   public DBusSigHandler<? extends DBusSignal>[] get(String iface, String member, String path, String source)
+   {
+      Map<String,Object> m = (Map<String,Object>) root.get(key(iface));
+      if (null == m) return null;
+      m = (Map<String,Object>) m.get(key(member));
+      if (null == m) return null;
+      Map<String,Object> anypath = (Map<String,Object>) m.get(ANY);
+      Map<String,Object> onpath = null == path ? null : (Map<String,Object>) m.get(path);
+      DBusSigHandler<? extends DBusSignal>[] a = null, b = null, c = null, d = null;
+      if (null != anypath) {
+         a = (DBusSigHandler<? extends DBusSignal>[]) anypath.get(ANY);
+         if (null != source) b = (DBusSigHandler<? extends DBusSignal>[]) anypath.get(source);
+      }
+      if (null != onpath) {
+         c = (DBusSigHandler<? extends DBusSignal>[]) onpath.get(ANY);
+         if (null != source) d = (DBusSigHandler<? extends DBusSignal>[]) onpath.get(source);
+      }
+      if (null == b && null == c && null == d) return a;
+      if (null == a && null == c && null == d) return b;
+      if (null == a && null == b && null == d) return c;
+      if (null == a && null == b && null == c) return d;
+      int n = (null == a ? 0 : a.length) + (null == b ? 0 : b.length)
+            + (null == c ? 0 : c.length) + (null == d ? 0 : d.length);
+      DBusSigHandler<? extends DBusSignal>[] rv = new DBusSigHandler<?>[n];
+      n = 0;
+      for (DBusSigHandler<?>[] hs: new DBusSigHandler<?>[][] { a, b, c, d })
+         if (null != hs) {
+            System.arraycopy(hs, 0, rv, n, hs.length);
+            n += hs.length;
+         }
+      return rv;
+   }
+}
@@ -0,0 +1,122 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import static org.freedesktop.dbus.Gettext._;
+
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.MarshallingException;
+import org.freedesktop.dbus.exceptions.UnknownTypeCodeException;
+
+/**
+ * One complete type from a D-Bus signature, parsed into a tree so that
+ * marshalling does not have to scan the signature again. Arrays have the
+ * type of their elements and structs and dict entries the types of their
+ * members. Parsed signatures are cached, so each distinct signature is
+ * only parsed once.
+ */
+class SignatureCodec
+{
+   /** Most signatures kept in the cache; others are parsed every time. */
+   private static final int MAX_CACHED = 1024;
+   private static final ConcurrentMap<String,SignatureCodec[]> cache = new ConcurrentHashMap<String,SignatureCodec[]>();
+
+   /** The type code; STRUCT1 or DICT_ENTRY1 for structs and dict entries. */
+   final byte type;
+   /** The alignment of values of this type. */
+   final int align;
+   /** For arrays, the type of the elements. */
+   final SignatureCodec element;
+   /** For structs and dict entries, the types of the members. */
+   final SignatureCodec[] members;
+   /** Offset of the last character of this type in the signature. */
+   final int end;
+
+   private SignatureCodec(byte type, SignatureCodec element, SignatureCodec[] members, int end)
+   {
+      this.type = type;
+      this.align = Message.getAlignment(type);
+      this.element = element;
+      this.members = members;
+      this.end = end;
+   }
+   /**
+    * Returns the complete types in a signature, in order.
+    */
+   public static SignatureCodec[] get(String sig) throws DBusException
+   {
+      SignatureCodec[] codecs = cache.get(sig);
+      if (null != codecs) return codecs;
+      byte[] sigb = sig.getBytes();
+      Vector<SignatureCodec> v = new Vector<SignatureCodec>();
+      for (int i = 0; i < sigb.length; i++) {
+         SignatureCodec c = parse(sigb, i);
+         v.add(c);
+         i = c.end;
+      }
+      codecs = v.toArray(new SignatureCodec[0]);
+      if (cache.size() < MAX_CACHED) cache.put(sig, codecs);
+      return codecs;
+   }
+   /**
+    * Returns the single complete type in a signature, such as that of a variant.
+    */
+   public static SignatureCodec getOne(String sig) throws DBusException
+   {
+      SignatureCodec[] codecs = get(sig);
+      if (1 != codecs.length) throw new MarshallingException(_("Not a single complete type: ")+sig);
+      return codecs[0];
+   }
+   private static SignatureCodec parse(byte[] sigb, int i) throws DBusException
+   {
+      switch (sigb[i]) {
+         case Message.ArgumentType.BYTE:
+         case Message.ArgumentType.BOOLEAN:
+         case Message.ArgumentType.INT16:
+         case Message.ArgumentType.UINT16:
+         case Message.ArgumentType.INT32:
+         case Message.ArgumentType.UINT32:
+         case Message.ArgumentType.INT64:
+         case Message.ArgumentType.UINT64:
+         case Message.ArgumentType.DOUBLE:
+         case Message.ArgumentType.FLOAT:
+         case Message.ArgumentType.STRING:
+         case Message.ArgumentType.OBJECT_PATH:
+         case Message.ArgumentType.SIGNATURE:
+         case Message.ArgumentType.VARIANT:
+            return new SignatureCodec(sigb[i], null, null, i);
+         case Message.ArgumentType.ARRAY:
+            if (i+1 >= sigb.length) throw new MarshallingException(_("Invalid signature: ")+new String(sigb));
+            SignatureCodec element = parse(sigb, i+1);
+            return new SignatureCodec(sigb[i], element, null, element.end);
+         case Message.ArgumentType.STRUCT1:
+         case Message.ArgumentType.DICT_ENTRY1:
+            byte close = Message.ArgumentType.STRUCT1 == sigb[i] ? Message.ArgumentType.STRUCT2 : Message.ArgumentType.DICT_ENTRY2;
+            Vector<SignatureCodec> v = new Vector<SignatureCodec>();
+            int j = i+1;
+            while (j < sigb.length && close != sigb[j]) {
+               SignatureCodec c = parse(sigb, j);
+               v.add(c);
+               j = c.end+1;
+            }
+            if (j >= sigb.length
+                  || (Message.ArgumentType.DICT_ENTRY1 == sigb[i] && 2 != v.size()))
+               throw new MarshallingException(_("Invalid signature: ")+new String(sigb));
+            return new SignatureCodec(sigb[i], null, v.toArray(new SignatureCodec[0]), j);
+         default:
+            throw new UnknownTypeCodeException(sigb[i]);
+      }
+   }
+}
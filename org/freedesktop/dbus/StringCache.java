@@ -0,0 +1,94 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Caches the UTF-8 form of the strings found in message headers, such as
+ * object paths, interfaces, members and bus names. Decoding returns an
+ * interned String for a run of bytes, and encoding returns the bytes for
+ * a String, so on a hit neither allocates. Each string has exactly one
+ * slot and replaces whatever was in it, so the cache never grows and
+ * needs no locks.
+ */
+class StringCache
+{
+   /** Strings longer than this in bytes are never cached. */
+   private static final int MAX_LENGTH = 255;
+
+   private static class Entry
+   {
+      final byte[] bytes;
+      final String string;
+      Entry(byte[] bytes, String string)
+      {
+         this.bytes = bytes;
+         this.string = string;
+      }
+   }
+
+   private final Entry[] decoded;
+   private final Entry[] encoded;
+   private final int mask;
+   /**
+    * @param size The number of slots in each direction, rounded up to a power of two.
+    */
+   public StringCache(int size)
+   {
+      int n = 1;
+      while (n < size) n *= 2;
+      mask = n-1;
+      decoded = new Entry[n];
+      encoded = new Entry[n];
+   }
+   private int slot(int h)
+   {
+      return (h ^ (h >>> 16)) & mask;
+   }
+   /**
+    * Returns the String held in len bytes of UTF-8 from buf at ofs.
+    */
+   public String decode(byte[] buf, int ofs, int len) throws UnsupportedEncodingException
+   {
+      if (len > MAX_LENGTH) return new String(buf, ofs, len, "UTF-8");
+      int h = 0;
+      for (int i = ofs; i < ofs+len; i++)
+         h = 31*h + buf[i];
+      int s = slot(h);
+      Entry e = decoded[s];
+      if (null != e && e.bytes.length == len) {
+         int i = 0;
+         while (i < len && e.bytes[i] == buf[ofs+i]) i++;
+         if (i == len) return e.string;
+      }
+      byte[] bytes = new byte[len];
+      System.arraycopy(buf, ofs, bytes, 0, len);
+      String string = new String(bytes, "UTF-8").intern();
+      decoded[s] = new Entry(bytes, string);
+      return string;
+   }
+   /**
+    * Returns the UTF-8 bytes of a String. The array is shared and must
+    * not be modified.
+    */
+   public byte[] encode(String string) throws UnsupportedEncodingException
+   {
+      if (string.length() > MAX_LENGTH) return string.getBytes("UTF-8");
+      int s = slot(string.hashCode());
+      Entry e = encoded[s];
+      if (null != e && (e.string == string || e.string.equals(string)))
+         return e.bytes;
+      byte[] bytes = string.getBytes("UTF-8");
+      encoded[s] = new Entry(bytes, string);
+      return bytes;
+   }
+}
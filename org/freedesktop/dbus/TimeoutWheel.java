@@ -0,0 +1,138 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import java.util.Vector;
+
+import cx.ath.matthew.debug.Debug;
+
+/**
+ * Expires method calls which have not had a reply by their deadline.
+ * This is a hashed timer wheel: time is split into ticks, and each call
+ * is put in the slot for the tick its deadline falls in, modulo the size
+ * of the wheel. Calls are linked through fields in MethodCall, so
+ * scheduling and cancelling are constant time and do not allocate.
+ * A single thread, started when the first call is scheduled, advances
+ * the wheel one slot per tick and expires the calls which are due. It
+ * sleeps without waking while there are no calls to time.
+ */
+class TimeoutWheel implements Runnable
+{
+   /** Length of a tick in ms, the accuracy of the timeouts. */
+   private static final long TICK = 100;
+   /** Number of slots; a power of two. */
+   private static final int WHEEL_SIZE = 512;
+
+   private final AbstractConnection conn;
+   private final MethodCall[] slots = new MethodCall[WHEEL_SIZE];
+   private final long start = System.currentTimeMillis();
+   /* The last tick which has been processed. */
+   private long ticks = 0;
+   private int size = 0;
+   private boolean stopped = false;
+   private Thread thread = null;
+   public TimeoutWheel(AbstractConnection conn)
+   {
+      this.conn = conn;
+   }
+   /**
+    * Expire a call after timeout ms, unless it is cancelled first.
+    */
+   public synchronized void schedule(MethodCall m, long timeout)
+   {
+      if (stopped || 0 <= m.wheelslot) return;
+      long elapsed = System.currentTimeMillis() - start;
+      // the thread does not tick while the wheel is empty, so catch up
+      if (0 == size) ticks = Math.max(ticks, elapsed / TICK);
+      long t = (elapsed + timeout + TICK - 1) / TICK;
+      if (t <= ticks) t = ticks + 1;
+      int s = (int) (t & (WHEEL_SIZE-1));
+      m.wheeltick = t;
+      m.wheelslot = s;
+      m.wheelprev = null;
+      m.wheelnext = slots[s];
+      if (null != slots[s]) slots[s].wheelprev = m;
+      slots[s] = m;
+      if (0 == size++) notifyAll();
+      if (null == thread) {
+         thread = new Thread(this, "DBus Timeouts");
+         thread.setDaemon(true);
+         thread.start();
+      }
+   }
+   /**
+    * Stop timing a call, because it has had a reply.
+    */
+   public synchronized void cancel(MethodCall m)
+   {
+      if (0 > m.wheelslot) return;
+      unlink(m);
+   }
+   private void unlink(MethodCall m)
+   {
+      if (null == m.wheelprev) slots[m.wheelslot] = m.wheelnext;
+      else m.wheelprev.wheelnext = m.wheelnext;
+      if (null != m.wheelnext) m.wheelnext.wheelprev = m.wheelprev;
+      m.wheelnext = null;
+      m.wheelprev = null;
+      m.wheelslot = -1;
+      size--;
+   }
+   /**
+    * Returns the number of calls being timed.
+    */
+   public synchronized int size()
+   {
+      return size;
+   }
+   /**
+    * Stop the timer thread. Calls still being timed are forgotten.
+    */
+   public synchronized void stop()
+   {
+      stopped = true;
+      for (int i = 0; i < WHEEL_SIZE; i++)
+         while (null != slots[i]) unlink(slots[i]);
+      notifyAll();
+   }
+   public void run()
+   {
+      Vector<MethodCall> expired = new Vector<MethodCall>();
+      while (true) {
+         synchronized (this) {
+            while (!stopped) {
+               // with nothing to time, wait until something is scheduled
+               long wait = 0 == size ? 0 : start + (ticks+1)*TICK - System.currentTimeMillis();
+               if (0 < size && 0 >= wait) break;
+               try {
+                  wait(wait);
+               } catch (InterruptedException Ie) {}
+            }
+            if (stopped) return;
+            ticks++;
+            MethodCall m = slots[(int) (ticks & (WHEEL_SIZE-1))];
+            while (null != m) {
+               MethodCall next = m.wheelnext;
+               if (m.wheeltick <= ticks) {
+                  unlink(m);
+                  expired.add(m);
+               }
+               m = next;
+            }
+         }
+         if (0 == expired.size()) continue;
+         if (Debug.debug) Debug.print(Debug.DEBUG, "Expiring "+expired.size()+" calls with no reply");
+         for (MethodCall m: expired)
+            conn.expireCall(m);
+         expired.clear();
+      }
+   }
+}
@@ -23,8 +23,9 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.text.ParseException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -754,7 +755,7 @@ public class Transport
       OutputStream out = null;
       InputStream in = null;
       UnixSocket us = null;
-      Socket s = null;
+      SocketChannel sc = null;
       int mode = 0;
       int types = 0;
       if ("unix".equals(address.getType())) {
@@ -780,18 +781,20 @@ public class Transport
          out = us.getOutputStream();
       } else if ("tcp".equals(address.getType())) {
          types = SASL.AUTH_SHA;
+         InetSocketAddress isa = new InetSocketAddress(address.getParameter("host"), Integer.parseInt(address.getParameter("port")));
          if (null != address.getParameter("listen")) {
             mode = SASL.MODE_SERVER;
-            ServerSocket ss = new ServerSocket();
-            ss.bind(new InetSocketAddress(address.getParameter("host"), Integer.parseInt(address.getParameter("port"))));
-            s = ss.accept();
+            ServerSocketChannel ssc = ServerSocketChannel.open();
+            ssc.socket().bind(isa);
+            sc = ssc.accept();
+            ssc.close();
          } else {
             mode = SASL.MODE_CLIENT;
-            s = new Socket();
-            s.connect(new InetSocketAddress(address.getParameter("host"), Integer.parseInt(address.getParameter("port"))));
+            sc = SocketChannel.open(isa);
          }
-         in = s.getInputStream();
-         out = s.getOutputStream();
+         // the streams are only used for authentication, messages go straight to the channel
+         in = Channels.newInputStream(sc);
+         out = Channels.newOutputStream(sc);
       } else {
          throw new IOException(_("unknown address type ")+address.getType());
       }
@@ -807,12 +810,14 @@ public class Transport
          else
             us.setSoTimeout(timeout);
       }
-      if (null != s) {
-         if (Debug.debug) Debug.print(Debug.VERBOSE, "Setting timeout to "+timeout+" on Socket");
-         s.setSoTimeout(timeout);
+      if (null != sc) {
+         // reads on a blocking channel ignore the socket timeout; they are interrupted by closing it
+         mout = new MessageWriter(sc);
+         min = new MessageReader(sc);
+      } else {
+         mout = new MessageWriter(out);
+         min = new MessageReader(in);
       }
-      mout = new MessageWriter(out);
-      min = new MessageReader(in);
    }
    public void disconnect() throws IOException
    {
@@ -15,6 +15,7 @@ import static org.freedesktop.dbus.Gettext._;
 import org.freedesktop.DBus;
 import org.freedesktop.dbus.AbstractConnection;
 import org.freedesktop.dbus.BusAddress;
+import org.freedesktop.dbus.DBusInterface;
 import org.freedesktop.dbus.DBusSignal;
 import org.freedesktop.dbus.DirectConnection;
 import org.freedesktop.dbus.Error;
@@ -36,15 +37,30 @@ import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.text.MessageFormat;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import cx.ath.matthew.debug.Debug;
 import cx.ath.matthew.unix.UnixServerSocket;
@@ -57,13 +73,42 @@ import cx.ath.matthew.unix.UnixSocketAddress;
 public class DBusDaemon extends Thread
 {
    public static final int QUEUE_POLL_WAIT = 500;
+   /** Maximum number of IOLoop threads used with --selector. */
+   public static final int IO_THREADS = 4;
+   /** Maximum number of threads routing messages between connections. */
+   public static final int ROUTER_THREADS = 8;
+   /** Default most messages queued for one connection before it is dropped. */
+   public static final int MAX_OUTGOING_MESSAGES = 65536;
+   /** Default most bytes queued for one connection before it is dropped. */
+   public static final long MAX_OUTGOING_BYTES = 32*1024*1024;
+   /* Number of bytes written to a blocking connection before flushing. */
+   private static final int WRITE_BATCH_BYTES = 65536;
+   static long wireSize(Message m)
+   {
+      long size = 0;
+      for (byte[] b: m.getWireData()) {
+         if (null == b) break;
+         size += b.length;
+      }
+      return size;
+   }
    static class Connstruct
    {
       public UnixSocket usock;
       public Socket tsock;
       public MessageReader min;
       public MessageWriter mout;
-      public String unique;
+      public volatile String unique;
+      /* The Router which handles every message from this connection, in order */
+      Router router;
+      /* The match rules added by this connection, guarded by the MatchIndex */
+      List<MatchRule> matchrules = new LinkedList<MatchRule>();
+      /* Messages waiting to be written to this connection, and their size.
+         All guarded by outq. */
+      private LinkedList<Message> outq = new LinkedList<Message>();
+      private long outbytes = 0;
+      private boolean overlimit = false;
+      private boolean closed = false;
       public Connstruct(UnixSocket sock)
       {
          this.usock = sock;
@@ -76,11 +121,345 @@ public class DBusDaemon extends Thread
          min = new MessageReader(sock.getInputStream());
          mout = new MessageWriter(sock.getOutputStream());
       }
+      /* Only used for connections served by an IOLoop */
+      public SocketChannel channel;
+      public IOLoop loop;
+      public SelectionKey key;
+      public WeakReference<Connstruct> weakconn;
+      private ByteBuffer[] outbufs;
+      private boolean flushing;
+      public Connstruct(SocketChannel sc, IOLoop loop) throws IOException
+      {
+         this.channel = sc;
+         this.loop = loop;
+         sc.configureBlocking(false);
+         min = new MessageReader(sc);
+         weakconn = new WeakReference<Connstruct>(this);
+      }
+      /**
+       * Add a message to the outbound queue. A message is always accepted
+       * by an empty queue, whatever its size.
+       * @return false if the connection is over its limits, in which case
+       *         the queue is emptied and the connection must be dropped.
+       */
+      boolean enqueue(Message m, boolean head, int maxmessages, long maxbytes)
+      {
+         long size = wireSize(m);
+         synchronized (outq) {
+            if (overlimit || closed) return !overlimit;
+            if (!outq.isEmpty() && (outq.size() >= maxmessages || outbytes + size > maxbytes)) {
+               if (Debug.debug) Debug.print(Debug.WARN, "Outbound queue for "+unique+" is full with "+outq.size()+" messages, dropping connection");
+               overlimit = true;
+               outq.clear();
+               outbytes = 0;
+               outq.notifyAll();
+               return false;
+            }
+            if (head)
+               outq.addFirst(m);
+            else
+               outq.addLast(m);
+            outbytes += size;
+            outq.notifyAll();
+            return true;
+         }
+      }
+      /**
+       * Take the next message from the outbound queue.
+       * @param block wait for a message if there are none.
+       * @return the message, or null if there are none or the connection is
+       *         closed or over its limits.
+       */
+      Message dequeue(boolean block)
+      {
+         synchronized (outq) {
+            while (block && outq.isEmpty() && !overlimit && !closed)
+               try {
+                  outq.wait();
+               } catch (InterruptedException Ie) {}
+            if (outq.isEmpty() || overlimit || closed) return null;
+            Message m = outq.removeFirst();
+            outbytes -= wireSize(m);
+            return m;
+         }
+      }
+      /** Stop queueing messages for this connection, and discard those queued. */
+      void close()
+      {
+         synchronized (outq) {
+            closed = true;
+            outq.clear();
+            outbytes = 0;
+            outq.notifyAll();
+         }
+      }
+      boolean isOverLimit()
+      {
+         synchronized (outq) {
+            return overlimit;
+         }
+      }
+      /**
+       * Write as much of the outbound queue as the socket will take.
+       * @return true if the queue has been emptied.
+       */
+      boolean flush() throws IOException
+      {
+         while (true) {
+            if (null == outbufs) {
+               Message m;
+               synchronized (outq) {
+                  m = dequeue(false);
+                  if (null == m) {
+                     flushing = false;
+                     return true;
+                  }
+               }
+               if (Debug.debug) Debug.print(Debug.INFO, "Sending message "+m+" to "+unique);
+               byte[][] wd = m.getWireData();
+               int n = 0;
+               while (n < wd.length && null != wd[n]) n++;
+               outbufs = new ByteBuffer[n];
+               for (int i = 0; i < n; i++)
+                  outbufs[i] = ByteBuffer.wrap(wd[i]);
+            }
+            channel.write(outbufs);
+            if (0 < outbufs.length && outbufs[outbufs.length-1].hasRemaining())
+               return false;
+            outbufs = null;
+         }
+      }
       public String toString()
       {
          return null == unique ? ":?-?" : unique;
       }
    }
+   /**
+    * A match rule added by a connection. Supports the type, sender,
+    * interface, member, path, destination and argN keys.
+    */
+   static class MatchRule
+   {
+      /** The highest N accepted for argN keys. */
+      private static final int MAX_ARG = 63;
+      Connstruct conn;
+      String type;
+      String sender;
+      String iface;
+      String member;
+      String path;
+      String destination;
+      String[] args;
+      private String canonical;
+      public MatchRule(Connstruct conn, String rule) throws DBus.Error.MatchRuleInvalid
+      {
+         this.conn = conn;
+         int i = 0;
+         int n = rule.length();
+         while (i < n) {
+            int eq = rule.indexOf('=', i);
+            if (-1 == eq) throw new DBus.Error.MatchRuleInvalid(_("Invalid match rule: ")+rule);
+            String key = rule.substring(i, eq).trim();
+            StringBuffer value = new StringBuffer();
+            boolean quoted = false;
+            for (i = eq+1; i < n; i++) {
+               char ch = rule.charAt(i);
+               if (quoted) {
+                  if ('\'' == ch) quoted = false;
+                  else value.append(ch);
+               } else if ('\'' == ch) quoted = true;
+               else if ('\\' == ch && i+1 < n && '\'' == rule.charAt(i+1)) {
+                  value.append('\'');
+                  i++;
+               } else if (',' == ch) break;
+               else value.append(ch);
+            }
+            if (quoted) throw new DBus.Error.MatchRuleInvalid(_("Invalid match rule: ")+rule);
+            i++;
+            set(key, value.toString(), rule);
+         }
+         StringBuffer sb = new StringBuffer();
+         sb.append(type).append(',').append(sender).append(',').append(iface).append(',');
+         sb.append(member).append(',').append(path).append(',').append(destination);
+         if (null != args) for (String a: args) sb.append(',').append(a);
+         canonical = sb.toString();
+      }
+      private void set(String key, String value, String rule) throws DBus.Error.MatchRuleInvalid
+      {
+         String old = null;
+         if ("type".equals(key)) {
+            if (!"signal".equals(value) && !"method_call".equals(value)
+                  && !"method_return".equals(value) && !"error".equals(value))
+               throw new DBus.Error.MatchRuleInvalid(_("Invalid match rule: ")+rule);
+            old = type; type = value;
+         } else if ("sender".equals(key)) { old = sender; sender = value; }
+         else if ("interface".equals(key)) { old = iface; iface = value; }
+         else if ("member".equals(key)) { old = member; member = value; }
+         else if ("path".equals(key)) { old = path; path = value; }
+         else if ("destination".equals(key)) { old = destination; destination = value; }
+         else if ("eavesdrop".equals(key)) return;
+         else if (key.startsWith("arg") && key.length() > 3) {
+            int a;
+            try {
+               a = Integer.parseInt(key.substring(3));
+            } catch (NumberFormatException NFe) {
+               throw new DBus.Error.MatchRuleInvalid(_("Invalid match rule: ")+rule);
+            }
+            if (a < 0 || a > MAX_ARG) throw new DBus.Error.MatchRuleInvalid(_("Invalid match rule: ")+rule);
+            if (null == args) args = new String[a+1];
+            else if (args.length <= a) {
+               String[] t = new String[a+1];
+               System.arraycopy(args, 0, t, 0, args.length);
+               args = t;
+            }
+            old = args[a]; args[a] = value;
+         } else 
+            throw new DBus.Error.MatchRuleInvalid(_("Invalid match rule: ")+rule);
+         if (null != old) throw new DBus.Error.MatchRuleInvalid(_("Invalid match rule: ")+rule);
+      }
+      /**
+       * Checks the fields not covered by the index. Well known names in the
+       * sender key are resolved through the name registry.
+       */
+      public boolean matches(DBusSignal s, Map<String, Connstruct> names)
+      {
+         if (null != type && !"signal".equals(type)) return false;
+         if (null != path && !path.equals(s.getPath())) return false;
+         if (null != destination && !destination.equals(s.getDestination())) return false;
+         if (null != sender && !sender.equals(s.getSource())) {
+            Connstruct owner = names.get(sender);
+            if (null == owner || null == s.getSource() || owner != names.get(s.getSource())) return false;
+         }
+         if (null != args) try {
+            // only decode the arguments the rule refers to
+            int count = s.getParameterCount();
+            for (int i = 0; i < args.length; i++)
+               if (null != args[i] && (count <= i || !args[i].equals(s.getParameter(i))))
+                  return false;
+         } catch (DBusException DBe) {
+            if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, DBe);
+            return false;
+         }
+         return true;
+      }
+      public boolean equals(Object o)
+      {
+         return (o instanceof MatchRule) 
+            && ((MatchRule) o).conn == conn 
+            && ((MatchRule) o).canonical.equals(canonical);
+      }
+      public int hashCode()
+      {
+         return canonical.hashCode();
+      }
+      public String toString()
+      {
+         return canonical;
+      }
+   }
+   /**
+    * Holds all the match rules on the bus, indexed by interface and member
+    * so that routing a signal only looks at the rules which could match it.
+    * Rules without an interface or member are stored under a null key.
+    */
+   static class MatchIndex
+   {
+      private ReadWriteLock lock = new ReentrantReadWriteLock();
+      private Map<String, Map<String, List<MatchRule>>> index = new HashMap<String, Map<String, List<MatchRule>>>();
+      private List<MatchRule> bucket(String iface, String member, boolean create)
+      {
+         Map<String, List<MatchRule>> members = index.get(iface);
+         if (null == members) {
+            if (!create) return null;
+            members = new HashMap<String, List<MatchRule>>();
+            index.put(iface, members);
+         }
+         List<MatchRule> l = members.get(member);
+         if (null == l && create) {
+            l = new Vector<MatchRule>();
+            members.put(member, l);
+         }
+         return l;
+      }
+      private void unbucket(MatchRule r)
+      {
+         Map<String, List<MatchRule>> members = index.get(r.iface);
+         if (null == members) return;
+         List<MatchRule> l = members.get(r.member);
+         if (null == l) return;
+         l.remove(r);
+         if (0 == l.size()) {
+            members.remove(r.member);
+            if (0 == members.size()) index.remove(r.iface);
+         }
+      }
+      public void add(MatchRule r)
+      {
+         lock.writeLock().lock();
+         try {
+            bucket(r.iface, r.member, true).add(r);
+            r.conn.matchrules.add(r);
+         } finally {
+            lock.writeLock().unlock();
+         }
+      }
+      /**
+       * Removes one instance of a rule.
+       * @return false if the connection had no such rule.
+       */
+      public boolean remove(MatchRule r)
+      {
+         lock.writeLock().lock();
+         try {
+            if (!r.conn.matchrules.remove(r)) return false;
+            unbucket(r);
+            return true;
+         } finally {
+            lock.writeLock().unlock();
+         }
+      }
+      /**
+       * Removes all the rules of a connection.
+       */
+      public void remove(Connstruct c)
+      {
+         lock.writeLock().lock();
+         try {
+            for (MatchRule r: c.matchrules)
+               unbucket(r);
+            c.matchrules.clear();
+         } finally {
+            lock.writeLock().unlock();
+         }
+      }
+      private void find(List<MatchRule> l, DBusSignal s, Map<String, Connstruct> names, Set<Connstruct> found)
+      {
+         if (null == l) return;
+         for (MatchRule r: l)
+            if (!found.contains(r.conn) && r.matches(s, names))
+               found.add(r.conn);
+      }
+      /**
+       * Find all the connections with a rule matching this signal. Any
+       * number of routers may do this at once.
+       */
+      public Set<Connstruct> find(DBusSignal s, Map<String, Connstruct> names)
+      {
+         Set<Connstruct> found = new LinkedHashSet<Connstruct>();
+         String iface = s.getInterface();
+         String member = s.getName();
+         lock.readLock().lock();
+         try {
+            find(bucket(iface, member, false), s, names, found);
+            find(bucket(iface, null, false), s, names, found);
+            find(bucket(null, member, false), s, names, found);
+            find(bucket(null, null, false), s, names, found);
+         } finally {
+            lock.readLock().unlock();
+         }
+         return found;
+      }
+   }
    static class MagicMap<A, B>
    {
       private Map<A, LinkedList<B>> m;
@@ -131,11 +510,40 @@ public class DBusDaemon extends Thread
          return q.size();
       }
    }
+   /**
+    * One of the bus's own methods, with the signatures of its arguments
+    * and return value worked out in advance.
+    */
+   static class BusMethod
+   {
+      final java.lang.reflect.Method meth;
+      final String insig;
+      final String outsig;
+      BusMethod(java.lang.reflect.Method meth) throws DBusException
+      {
+         this.meth = meth;
+         insig = Marshalling.getDBusType(meth.getGenericParameterTypes());
+         outsig = Void.TYPE.equals(meth.getReturnType()) ? null
+            : Marshalling.getDBusType(meth.getGenericReturnType())[0];
+      }
+   }
    public class DBusServer extends Thread implements DBus, DBus.Introspectable, DBus.Peer
    {
+      /* The methods callable on the bus, by member name */
+      private Map<String, BusMethod> busmethods = new HashMap<String, BusMethod>();
       public DBusServer()
       {
          setName("Server");
+         // only the methods of the bus interfaces, not those of Thread
+         for (Class<?> iface: DBusServer.class.getInterfaces())
+            for (java.lang.reflect.Method im: iface.getMethods()) {
+               if (DBusInterface.class.equals(im.getDeclaringClass())) continue;
+               try {
+                  busmethods.put(im.getName(), new BusMethod(DBusServer.class.getMethod(im.getName(), im.getParameterTypes())));
+               } catch (Exception e) {
+                  if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, e);
+               }
+            }
       }
       public Connstruct c;
       public Message m;
@@ -150,9 +558,7 @@ public class DBusDaemon extends Thread
                c.unique = ":1."+(++next_unique);
             }
          }
-         synchronized (names) {
-            names.put(c.unique, c);
-         }
+         names.put(c.unique, c);
 
          if (Debug.debug) Debug.print(Debug.WARN, "Client "+c.unique+" registered");
 
@@ -169,11 +575,10 @@ public class DBusDaemon extends Thread
       public String[] ListNames()
       {
          if (Debug.debug) Debug.print(Debug.DEBUG, "enter");
-         String[] ns;
-         synchronized (names) {
-            Set<String> nss = names.keySet();
-            ns = nss.toArray(new String[0]);
-         }
+         Vector<String> nss = new Vector<String>();
+         nss.add("org.freedesktop.DBus");
+         nss.addAll(names.keySet());
+         String[] ns = nss.toArray(new String[0]);
          if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
          return ns;
       } 
@@ -181,10 +586,7 @@ public class DBusDaemon extends Thread
       public boolean NameHasOwner(String name)
       {
          if (Debug.debug) Debug.print(Debug.DEBUG, "enter");
-         boolean rv;
-         synchronized (names) {
-            rv = names.containsKey(name);
-         }
+         boolean rv = "org.freedesktop.DBus".equals(name) || names.containsKey(name);
          if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
          return rv;
       }
@@ -217,11 +619,7 @@ public class DBusDaemon extends Thread
       {
          if (Debug.debug) Debug.print(Debug.DEBUG, "enter");
          
-         boolean exists = false;
-         synchronized (names) {
-            if (!(exists = names.containsKey(name)))
-               names.put(name, c);
-         }
+         boolean exists = "org.freedesktop.DBus".equals(name) || null != names.putIfAbsent(name, c);
          
          int rv;
          if (exists) {
@@ -245,11 +643,7 @@ public class DBusDaemon extends Thread
       {
          if (Debug.debug) Debug.print(Debug.DEBUG, "enter");
  
-         boolean exists = false;
-         synchronized (names) {
-            if ((exists = (names.containsKey(name) && names.get(name).equals(c))))
-               names.remove(name);
-         }
+         boolean exists = names.remove(name, c);
          
          int rv;
          if (!exists) {
@@ -272,10 +666,7 @@ public class DBusDaemon extends Thread
       {
          if (Debug.debug) Debug.print(Debug.DEBUG, "enter");
          if (Debug.debug) Debug.print(Debug.VERBOSE, "Adding match rule: "+matchrule);
-         synchronized (sigrecips) {
-            if (!sigrecips.contains(c))
-               sigrecips.add(c);
-         }
+         matches.add(new MatchRule(c, matchrule));
          if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
          return;
       }
@@ -283,6 +674,8 @@ public class DBusDaemon extends Thread
       {
          if (Debug.debug) Debug.print(Debug.DEBUG, "enter");
          if (Debug.debug) Debug.print(Debug.VERBOSE, "Removing match rule: "+matchrule);
+         if (!matches.remove(new MatchRule(c, matchrule)))
+            throw new DBus.Error.MatchRuleNotFound(_("The given match rule wasn't found and can't be removed"));
          if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
          return;
       }
@@ -310,34 +703,24 @@ public class DBusDaemon extends Thread
          if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
          return;
       }
-      @SuppressWarnings("unchecked")
       private void handleMessage(Connstruct c, Message m) throws DBusException
       {
          if (Debug.debug) Debug.print(Debug.DEBUG, "enter");
          if (Debug.debug) Debug.print(Debug.VERBOSE, "Handling message "+m+" from "+c.unique);
          if (!(m instanceof MethodCall)) return;
-         Object[] args = m.getParameters();
-
-         Class<? extends Object>[] cs = new Class[args.length];
-
-         for (int i = 0; i < cs.length; i++)
-            cs[i] = args[i].getClass();
-
-         java.lang.reflect.Method meth = null;
-         Object rv = null;
+         BusMethod bm = busmethods.get(m.getName());
+         String sig = m.getSig();
+         if (null == sig) sig = "";
 
-         try {
-            meth = DBusServer.class.getMethod(m.getName(), cs);
+         if (null != bm && bm.insig.equals(sig)) {
             try {
                this.c = c;
                this.m = m;
-               rv = meth.invoke(dbus_server, args);
-               if (null == rv) {
+               Object rv = bm.meth.invoke(dbus_server, m.getParameters());
+               if (null == rv || null == bm.outsig)
                   send(c, new MethodReturn("org.freedesktop.DBus", (MethodCall) m, null), true);
-               } else {
-                  String sig = Marshalling.getDBusType(meth.getGenericReturnType())[0];
-                  send(c, new MethodReturn("org.freedesktop.DBus", (MethodCall) m, sig, rv), true);
-               }
+               else
+                  send(c, new MethodReturn("org.freedesktop.DBus", (MethodCall) m, bm.outsig, rv), true);
             } catch (InvocationTargetException ITe) {
                if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, ITe);
                if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, ITe.getCause());
@@ -349,9 +732,8 @@ public class DBusDaemon extends Thread
                if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, e);
                send(c,new org.freedesktop.dbus.Error("org.freedesktop.DBus", c.unique, "org.freedesktop.DBus.Error.GeneralError", m.getSerial(), "s", _("An error occurred while calling ")+m.getName()));
             }
-         } catch (NoSuchMethodException NSMe) {
+         } else
             send(c,new org.freedesktop.dbus.Error("org.freedesktop.DBus", c.unique, "org.freedesktop.DBus.Error.UnknownMethod", m.getSerial(), "s", _("This service does not support ")+m.getName()));
-         }
 
          if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
       }
@@ -467,46 +849,171 @@ public class DBusDaemon extends Thread
          if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
       }
    }
-   public class Sender extends Thread
+   /**
+    * Writes the outbound queue of one connection with a blocking socket,
+    * so that a client which stops reading only holds up its own messages.
+    */
+   public class Writer extends Thread
    {
-      public Sender()
+      private Connstruct conn;
+      public Writer(Connstruct conn)
       {
-         setName("Sender");
+         this.conn = conn;
+         setName("Writer");
       }
       public void run()
       {
          if (Debug.debug) Debug.print(Debug.DEBUG, "enter");
-         while (_run) {
-
-            if (Debug.debug) Debug.print(Debug.VERBOSE, "Acquiring lock on outqueue and blocking for data");
+         try {
+            Message m;
+            while (_run && null != (m = conn.dequeue(true))) {
+               // write everything queued, flushing once at the end
+               do {
+                  if (Debug.debug) Debug.print(Debug.INFO, "Sending message "+m+" to "+conn.unique);
+                  conn.mout.write(m);
+                  if (conn.mout.getPendingBytes() >= WRITE_BATCH_BYTES)
+                     conn.mout.flush();
+               } while (null != (m = conn.dequeue(false)));
+               conn.mout.flush();
+            }
+            if (conn.isOverLimit()) removeConnection(conn);
+         } catch (IOException IOe) {
+            if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, IOe);
+            removeConnection(conn);
+         }
+         conn = null;
+         if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
+      }
+   }
+   /**
+    * Serves the reads and writes of many non-blocking connections
+    * from one thread with a Selector.
+    */
+   public class IOLoop extends Thread
+   {
+      private Selector selector;
+      private LinkedList<Connstruct> registrations = new LinkedList<Connstruct>();
+      private LinkedList<Connstruct> flushes = new LinkedList<Connstruct>();
+      public IOLoop(int n) throws IOException
+      {
+         selector = Selector.open();
+         setName("IOLoop-"+n);
+      }
+      public void register(Connstruct c)
+      {
+         synchronized (registrations) {
+            registrations.add(c);
+         }
+         selector.wakeup();
+      }
+      /**
+       * Queue a message on a connection's outbound queue. If nothing else
+       * is writing to the connection the queue is written straight away;
+       * whatever the socket does not take is left to this loop's thread.
+       */
+      public void queue(Connstruct c, Message m, boolean head)
+      {
+         if (!c.enqueue(m, head, maxoutmessages, maxoutbytes)) {
+            // have this loop drop it, outside whatever locks we hold
+            synchronized (flushes) {
+               flushes.add(c);
+            }
+            selector.wakeup();
+            return;
+         }
+         synchronized (c.outq) {
+            if (c.flushing) return;
+            c.flushing = true;
+         }
+         try {
+            if (c.flush()) return;
+         } catch (IOException IOe) {
+            if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, IOe);
+            removeConnection(c);
+            return;
+         }
+         synchronized (flushes) {
+            flushes.add(c);
+         }
+         selector.wakeup();
+      }
+      private void read(Connstruct c)
+      {
+         while (true) {
             Message m = null;
-				List<WeakReference<Connstruct>> wcs = null;
-            // block on outqueue
-            synchronized (outqueue) { 
-               while (outqueue.size() == 0) try {
-                  outqueue.wait();
-               } catch (InterruptedException Ie) { } 
-
-               m = outqueue.head();
-               wcs = outqueue.remove(m);
+            try {
+               m = c.min.readMessage();
+            } catch (IOException IOe) {
+               if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, IOe);
+               removeConnection(c);
+               return;
+            } catch (DBusException DBe) {
+               if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, DBe);
+               if (DBe instanceof FatalException) {
+                  removeConnection(c);
+                  return;
+               }
+               continue;
             }
-            if (null != wcs) {
-					for (WeakReference<Connstruct> wc: wcs) {
-						Connstruct c = wc.get();
-						if (null != c) {
-							if (Debug.debug) Debug.print(Debug.VERBOSE, "<outqueue> Got message "+m+" for "+c.unique);
-							if (Debug.debug) Debug.print(Debug.INFO, "Sending message "+m+" to "+c.unique);
-							try {
-								c.mout.writeMessage(m);
-							}
-							catch (IOException IOe) {
-								if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, IOe);
-								removeConnection(c);
-							}
-						}
-					}
+            // the reader has consumed all the data currently available
+            if (null == m) return;
+            if (Debug.debug) Debug.print(Debug.INFO, "Read "+m+" from "+c.unique);
+            c.router.queue(m, c.weakconn);
+         }
+      }
+      private void write(Connstruct c)
+      {
+         if (c.isOverLimit()) {
+            removeConnection(c);
+            return;
+         }
+         try {
+            boolean done = c.flush();
+            if (null != c.key && c.key.isValid())
+               c.key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+         } catch (IOException IOe) {
+            if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, IOe);
+            removeConnection(c);
+         } catch (CancelledKeyException CKe) {
+            if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, CKe);
+         }
+      }
+      public void run()
+      {
+         if (Debug.debug) Debug.print(Debug.DEBUG, "enter");
+         while (_run) {
+            try {
+               selector.select();
+            } catch (IOException IOe) {
+               if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, IOe);
+               continue;
+            }
+            LinkedList<Connstruct> l;
+            synchronized (registrations) {
+               l = new LinkedList<Connstruct>(registrations);
+               registrations.clear();
+            }
+            for (Connstruct c: l)
+               try {
+                  c.key = c.channel.register(selector, SelectionKey.OP_READ, c);
+               } catch (ClosedChannelException CCe) {
+                  if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, CCe);
+                  removeConnection(c);
+               }
+            synchronized (flushes) {
+               l = new LinkedList<Connstruct>(flushes);
+               flushes.clear();
+            }
+            for (Connstruct c: l)
+               write(c);
+            Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+            while (i.hasNext()) {
+               SelectionKey k = i.next();
+               i.remove();
+               Connstruct c = (Connstruct) k.attachment();
+               if (k.isValid() && k.isReadable()) read(c);
+               if (k.isValid() && k.isWritable()) write(c);
             }
-            else if (Debug.debug) Debug.print(Debug.INFO, "Discarding "+m+" connection reaped");
          }
          if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
       }
@@ -545,10 +1052,7 @@ public class DBusDaemon extends Thread
 
             if (null != m) {
                if (Debug.debug) Debug.print(Debug.INFO, "Read "+m+" from "+conn.unique);
-               synchronized (inqueue) {
-                  inqueue.putLast(m, weakconn);
-                  inqueue.notifyAll();
-               }
+               conn.router.queue(m, weakconn);
             }
          }
          conn = null;
@@ -557,23 +1061,36 @@ public class DBusDaemon extends Thread
    }
 
    private Map<Connstruct, Reader> conns = new HashMap<Connstruct, Reader>();
-   private HashMap<String, Connstruct> names = new HashMap<String, Connstruct>();
-   private MagicMap<Message, WeakReference<Connstruct>> outqueue = new MagicMap<Message, WeakReference<Connstruct>>("out");
-   private MagicMap<Message, WeakReference<Connstruct>> inqueue = new MagicMap<Message, WeakReference<Connstruct>>("in");
+   /* Owners of the bus names. The bus itself is not in here. */
+   private ConcurrentMap<String, Connstruct> names = new ConcurrentHashMap<String, Connstruct>();
+   private Router[] routers = new Router[Math.min(ROUTER_THREADS, Runtime.getRuntime().availableProcessors())];
+   private int next_router = 0;
    private MagicMap<Message, WeakReference<Connstruct>> localqueue = new MagicMap<Message, WeakReference<Connstruct>>("local");
-   private List<Connstruct> sigrecips = new Vector<Connstruct>();
+   private MatchIndex matches = new MatchIndex();
    private boolean _run = true;
    private int next_unique = 0;
    private Object unique_lock = new Object();
+   private volatile int maxoutmessages = MAX_OUTGOING_MESSAGES;
+   private volatile long maxoutbytes = MAX_OUTGOING_BYTES;
    DBusServer dbus_server = new DBusServer();
-   Sender sender = new Sender();
    
    public DBusDaemon()
    {
       setName("Daemon");
-      synchronized (names) {
-         names.put("org.freedesktop.DBus", null);
-      }
+      for (int i = 0; i < routers.length; i++)
+         routers[i] = new Router(i);
+   }
+   /**
+    * Set how much may be queued for a connection which is not reading
+    * its messages before it is disconnected.
+    * @param messages The most messages to queue for one connection.
+    * @param bytes The most bytes to queue for one connection.
+    */
+   public void setOutgoingLimits(int messages, long bytes)
+   {
+      if (messages < 1 || bytes < 1) throw new IllegalArgumentException("Outgoing limits must be positive");
+      maxoutmessages = messages;
+      maxoutbytes = bytes;
    }
    @SuppressWarnings("unchecked")
    private void send(Connstruct c, Message m)
@@ -592,100 +1109,137 @@ public class DBusDaemon extends Thread
       // send to all connections
       if (null == c) {
          synchronized (conns) {
-            synchronized (outqueue) {
-               for (Connstruct d: conns.keySet()) 
-                  if (head)
-                     outqueue.putFirst(m, new WeakReference<Connstruct>(d));
-                  else
-                     outqueue.putLast(m, new WeakReference<Connstruct>(d));
-               outqueue.notifyAll();
-            }
-         }
-      } else {
-         synchronized (outqueue) {
-            if (head)
-               outqueue.putFirst(m, new WeakReference<Connstruct>(c));
-            else
-               outqueue.putLast(m, new WeakReference<Connstruct>(c));
-            outqueue.notifyAll();
+            for (Connstruct d: conns.keySet()) 
+               queue(d, m, head);
          }
-      }
+      } else 
+         queue(c, m, head);
       if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
    }
-   @SuppressWarnings("unchecked")
-   private List<Connstruct> findSignalMatches(DBusSignal sig)
+   /* Put a message on a connection's own queue. A connection which goes
+      over its limits is dropped by the thread writing to it. */
+   private void queue(Connstruct c, Message m, boolean head)
    {
-      if (Debug.debug) Debug.print(Debug.DEBUG, "enter");
-      List<Connstruct> l;
-      synchronized (sigrecips) {
-         l = new Vector<Connstruct>(sigrecips);
+      if (null != c.loop)
+         c.loop.queue(c, m, head);
+      else if (!c.enqueue(m, head, maxoutmessages, maxoutbytes)) {
+         // unblock the writer, which will then remove the connection
+         try {
+            if (null != c.usock) c.usock.close();
+            if (null != c.tsock) c.tsock.close();
+         } catch (IOException IOe) {}
       }
+   }
+   private Set<Connstruct> findSignalMatches(DBusSignal sig)
+   {
+      if (Debug.debug) Debug.print(Debug.DEBUG, "enter");
+      Set<Connstruct> l = matches.find(sig, names);
       if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
       return l;
    }
-   @SuppressWarnings("unchecked")
-   public void run()
+   /**
+    * Routes the messages read from a share of the connections. All the
+    * messages from one connection go through the same Router, so they are
+    * delivered in the order they were sent.
+    */
+   public class Router extends Thread
    {
-      if (Debug.debug) Debug.print(Debug.DEBUG, "enter");
-      while (_run) {
-            try {
-               Message m;
-               List<WeakReference<Connstruct>> wcs;
-               synchronized (inqueue) {
-                  while (0 == inqueue.size()) try {
-                     inqueue.wait();
-                  } catch (InterruptedException Ie) {}
-                  
-                  m = inqueue.head();
-						wcs = inqueue.remove(m);
-					}
-					if (null != wcs) {
-						for (WeakReference<Connstruct> wc: wcs) {
-							Connstruct c = wc.get();
-							if (null != c) {
-								if (Debug.debug) Debug.print(Debug.INFO, "<inqueue> Got message "+m+" from "+c.unique);
-								// check if they have hello'd
-								if (null == c.unique 
-										&& (!(m instanceof MethodCall) 
-											|| !"org.freedesktop.DBus".equals(m.getDestination())
-											|| !"Hello".equals(m.getName()))) {
-									send(c,new Error("org.freedesktop.DBus", null, "org.freedesktop.DBus.Error.AccessDenied", m.getSerial(), "s", _("You must send a Hello message")));
-								} else {
-									try {
-										if (null != c.unique) m.setSource(c.unique);
-									} catch (DBusException DBe) {
-										if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, DBe);
-										send(c,new Error("org.freedesktop.DBus", null, "org.freedesktop.DBus.Error.GeneralError", m.getSerial(), "s", _("Sending message failed")));
-									}
-
-									if ("org.freedesktop.DBus".equals(m.getDestination())) {
-										synchronized (localqueue) {
-											localqueue.putLast(m, wc);
-											localqueue.notifyAll();
-										}
-									} else {
-										if (m instanceof DBusSignal) {
-											List<Connstruct> list = findSignalMatches((DBusSignal) m);
-											for (Connstruct d: list)
-																	 send(d, m);
-										} else {
-											Connstruct dest = names.get(m.getDestination());
-
-											if (null == dest) {
-												send(c, new Error("org.freedesktop.DBus", null, "org.freedesktop.DBus.Error.ServiceUnknown", m.getSerial(), "s", MessageFormat.format(_("The name `{0}' does not exist"), new Object[] { m.getDestination() })));
-											} else
-												send(dest, m);
-										}
-									}
-								}
-							}
-						}
-               }
-            }
-            catch (DBusException DBe) {
-               if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, DBe);
+      private MagicMap<Message, WeakReference<Connstruct>> inqueue;
+      public Router(int n)
+      {
+         setName("Router-"+n);
+         inqueue = new MagicMap<Message, WeakReference<Connstruct>>("in"+n);
+      }
+      public void queue(Message m, WeakReference<Connstruct> wc)
+      {
+         synchronized (inqueue) {
+            inqueue.putLast(m, wc);
+            inqueue.notifyAll();
+         }
+      }
+      public void run()
+      {
+         if (Debug.debug) Debug.print(Debug.DEBUG, "enter");
+         while (_run) {
+            Message m;
+            List<WeakReference<Connstruct>> wcs;
+            synchronized (inqueue) {
+               while (0 == inqueue.size()) try {
+                  inqueue.wait();
+               } catch (InterruptedException Ie) {}
+               m = inqueue.head();
+               wcs = inqueue.remove(m);
             }
+            if (null != wcs)
+               for (WeakReference<Connstruct> wc: wcs) {
+                  Connstruct c = wc.get();
+                  if (null != c) try {
+                     route(c, wc, m);
+                  } catch (DBusException DBe) {
+                     if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, DBe);
+                  } catch (RuntimeException Re) {
+                     // one bad message must not stop routing for every connection on this router
+                     if (Debug.debug) Debug.print(Debug.ERR, Re);
+                  }
+               }
+         }
+         if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
       }
+   }
+   private void route(Connstruct c, WeakReference<Connstruct> wc, Message m) throws DBusException
+   {
+      if (Debug.debug) Debug.print(Debug.INFO, "<inqueue> Got message "+m+" from "+c.unique);
+      // check if they have hello'd
+      if (null == c.unique 
+            && (!(m instanceof MethodCall) 
+               || !"org.freedesktop.DBus".equals(m.getDestination())
+               || !"Hello".equals(m.getName()))) {
+         send(c,new Error("org.freedesktop.DBus", null, "org.freedesktop.DBus.Error.AccessDenied", m.getSerial(), "s", _("You must send a Hello message")));
+         return;
+      }
+      try {
+         if (null != c.unique) m.setSource(c.unique);
+      } catch (DBusException DBe) {
+         if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, DBe);
+         send(c,new Error("org.freedesktop.DBus", null, "org.freedesktop.DBus.Error.GeneralError", m.getSerial(), "s", _("Sending message failed")));
+      }
+
+      if ("org.freedesktop.DBus".equals(m.getDestination())) {
+         synchronized (localqueue) {
+            localqueue.putLast(m, wc);
+            localqueue.notifyAll();
+         }
+      } else if (m instanceof DBusSignal) {
+         Set<Connstruct> list = findSignalMatches((DBusSignal) m);
+         for (Connstruct d: list)
+            send(d, m);
+      } else {
+         // the name map does not take null keys
+         String destination = m.getDestination();
+         Connstruct dest = null == destination ? null : names.get(destination);
+
+         if (null == dest) {
+            send(c, new Error("org.freedesktop.DBus", null, "org.freedesktop.DBus.Error.ServiceUnknown", m.getSerial(), "s", MessageFormat.format(_("The name `{0}' does not exist"), new Object[] { m.getDestination() })));
+         } else
+            send(dest, m);
+      }
+   }
+   /* Pick the Router for a new connection. Call with the conns lock held. */
+   private Router nextRouter()
+   {
+      Router r = routers[next_router];
+      next_router = (next_router + 1) % routers.length;
+      return r;
+   }
+   public void run()
+   {
+      if (Debug.debug) Debug.print(Debug.DEBUG, "enter");
+      for (Router r: routers)
+         r.start();
+      for (Router r: routers)
+         while (r.isAlive()) try {
+            r.join();
+         } catch (InterruptedException Ie) {}
       if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
    }
    private void removeConnection(Connstruct c)
@@ -695,29 +1249,25 @@ public class DBusDaemon extends Thread
       synchronized(conns) {
          if ((exists = conns.containsKey(c))) {
             Reader r = conns.get(c);
-            r.stopRunning();
+            if (null != r) r.stopRunning();
             conns.remove(c);
          }
       }
       if (exists) {
+         c.close();
+         matches.remove(c);
          try {
             if (null != c.usock) c.usock.close();
             if (null != c.tsock) c.tsock.close();
+            if (null != c.channel) c.channel.close();
          } catch (IOException IOe) {}
-         synchronized(names) {
-            List<String> toRemove = new Vector<String>();
-            for (String name: names.keySet()) 
-               if (names.get(name) == c) {
-                  toRemove.add(name);
-                  try {
-                     send(null, new DBusSignal("org.freedesktop.DBus", "/org/freedesktop/DBus", "org.freedesktop.DBus", "NameOwnerChanged", "sss", name, c.unique, ""));
-                  } catch (DBusException DBe) {
-                     if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, DBe);
-                  }
+         for (Map.Entry<String, Connstruct> e: names.entrySet())
+            if (e.getValue() == c && names.remove(e.getKey(), c))
+               try {
+                  send(null, new DBusSignal("org.freedesktop.DBus", "/org/freedesktop/DBus", "org.freedesktop.DBus", "NameOwnerChanged", "sss", e.getKey(), c.unique, ""));
+               } catch (DBusException DBe) {
+                  if (Debug.debug && AbstractConnection.EXCEPTION_DEBUG) Debug.print(Debug.ERR, DBe);
                }
-            for (String name: toRemove)
-               names.remove(name);
-         }
       }
       if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
    }
@@ -728,9 +1278,11 @@ public class DBusDaemon extends Thread
       Connstruct c = new Connstruct(us);
       Reader r = new Reader(c);
       synchronized (conns) {
+         c.router = nextRouter();
          conns.put(c, r);
       }
       r.start();
+      new Writer(c).start();
       if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
    }
    public void addSock(Socket s) throws IOException
@@ -740,14 +1292,31 @@ public class DBusDaemon extends Thread
       Connstruct c = new Connstruct(s);
       Reader r = new Reader(c);
       synchronized (conns) {
+         c.router = nextRouter();
          conns.put(c, r);
       }
       r.start();
+      new Writer(c).start();
+      if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
+   }
+   /**
+    * Add a connection which will be served by the given IOLoop rather than its own Reader thread.
+    */
+   public void addSock(SocketChannel sc, IOLoop loop) throws IOException
+   {
+      if (Debug.debug) Debug.print(Debug.DEBUG, "enter");
+      if (Debug.debug) Debug.print(Debug.WARN, "New Client");
+      Connstruct c = new Connstruct(sc, loop);
+      synchronized (conns) {
+         c.router = nextRouter();
+         conns.put(c, null);
+      }
+      loop.register(c);
       if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
    }
    public static void syntax()
    {
-      System.out.println("Syntax: DBusDaemon [--version] [-v] [--help] [-h] [--listen address] [-l address] [--print-address] [-r] [--pidfile file] [-p file] [--addressfile file] [-a file] [--unix] [-u] [--tcp] [-t] ");
+      System.out.println("Syntax: DBusDaemon [--version] [-v] [--help] [-h] [--listen address] [-l address] [--print-address] [-r] [--pidfile file] [-p file] [--addressfile file] [-a file] [--unix] [-u] [--tcp] [-t] [--selector] [-s] ");
       System.exit(1);
    }
    public static void version()
@@ -771,6 +1340,7 @@ public class DBusDaemon extends Thread
       boolean printaddress = false;
       boolean unix = true;
       boolean tcp = false;
+      boolean selector = false;
 
       // parse options
       try {
@@ -793,7 +1363,9 @@ public class DBusDaemon extends Thread
             } else if ("--tcp".equals(args[i]) || "-t".equals(args[i])) {
                tcp = true;
                unix = false;
-            } else syntax();
+            } else if ("--selector".equals(args[i]) || "-s".equals(args[i]))
+               selector = true;
+            else syntax();
       } catch (ArrayIndexOutOfBoundsException AIOOBe) {
          syntax();
       }
@@ -821,6 +1393,8 @@ public class DBusDaemon extends Thread
       if (Debug.debug) Debug.print(Debug.WARN, "Binding to "+addr);
       if ("unix".equals(address.getType()))
          doUnix(address);
+      else if ("tcp".equals(address.getType()) && selector)
+         doSelectorTCP(address);
       else if ("tcp".equals(address.getType()))
          doTCP(address);
       else throw new Exception("Unknown address type: "+address.getType());
@@ -836,7 +1410,6 @@ public class DBusDaemon extends Thread
          uss = new UnixServerSocket(new UnixSocketAddress(address.getParameter("path"), false)); 
       DBusDaemon d = new DBusDaemon();
       d.start();
-      d.sender.start();
       d.dbus_server.start();
 
       // accept new connections
@@ -856,7 +1429,6 @@ public class DBusDaemon extends Thread
       ServerSocket ss = new ServerSocket(Integer.parseInt(address.getParameter("port")),10, InetAddress.getByName(address.getParameter("host"))); 
       DBusDaemon d = new DBusDaemon();
       d.start();
-      d.sender.start();
       d.dbus_server.start();
 
       // accept new connections
@@ -875,4 +1447,40 @@ public class DBusDaemon extends Thread
       }
       if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
    }
+   /**
+    * Serves TCP clients from a small, fixed pool of IOLoop threads
+    * rather than a Reader thread per connection.
+    */
+   private static void doSelectorTCP(BusAddress address) throws IOException
+   {
+      if (Debug.debug) Debug.print(Debug.DEBUG, "enter");
+      ServerSocketChannel ssc = ServerSocketChannel.open();
+      ssc.socket().bind(new InetSocketAddress(InetAddress.getByName(address.getParameter("host")), Integer.parseInt(address.getParameter("port"))), 10);
+      DBusDaemon d = new DBusDaemon();
+      IOLoop[] loops = new IOLoop[Math.min(IO_THREADS, Runtime.getRuntime().availableProcessors())];
+      for (int i = 0; i < loops.length; i++) {
+         loops[i] = d.new IOLoop(i);
+         loops[i].start();
+      }
+      d.start();
+      d.dbus_server.start();
+
+      // accept new connections, authenticating them before they go non-blocking
+      int next = 0;
+      while (d._run) {
+         SocketChannel sc = ssc.accept();
+         boolean authOK=false;
+         try {
+            authOK = (new Transport.SASL()).auth(Transport.SASL.MODE_SERVER, Transport.SASL.AUTH_EXTERNAL, address.getParameter("guid"), Channels.newOutputStream(sc), Channels.newInputStream(sc), null);
+         } catch (Exception e) {
+            if (Debug.debug) Debug. print(Debug.DEBUG, e);
+         }
+         if (authOK) {
+            d.addSock(sc, loops[next]);
+            next = (next + 1) % loops.length;
+         } else
+            sc.close();
+      }
+      if (Debug.debug) Debug.print(Debug.DEBUG, "exit");
+   }
 }
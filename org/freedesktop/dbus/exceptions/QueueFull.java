@@ -0,0 +1,24 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus.exceptions;
+
+/**
+ * Thrown if a message cannot be sent because the outgoing queue is full
+ * and the connection is set to fail rather than wait.
+ */
+@SuppressWarnings("serial")
+public class QueueFull extends DBusExecutionException
+{
+   public QueueFull(String message)
+   {
+      super (message);
+   }
+}
@@ -0,0 +1,37 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus.test;
+
+import org.freedesktop.DBus.Method.NoReply;
+import org.freedesktop.dbus.DBusInterface;
+import org.freedesktop.dbus.DBusSignal;
+import org.freedesktop.dbus.exceptions.DBusException;
+
+/**
+ * An interface whose calls and signals are checked to arrive in order.
+ */
+public interface TestOrderInterface extends DBusInterface
+{
+   @NoReply
+   public void order(int n);
+   public static class OrderSignal extends DBusSignal
+   {
+      public final int n;
+      /**
+       * Create a signal.
+       */
+      public OrderSignal(String path, int n) throws DBusException
+      {
+         super(path, n);
+         this.n = n;
+      }
+   }
+}
@@ -0,0 +1,28 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus.test;
+
+import java.util.concurrent.Future;
+
+import org.freedesktop.DBus.Method.Timeout;
+import org.freedesktop.dbus.DBusInterface;
+
+/**
+ * An interface whose methods are called on a peer which never replies.
+ */
+public interface TestTimeoutInterface extends DBusInterface
+{
+   @Timeout(500)
+   public String sleep();
+   @Timeout(500)
+   public Future<String> sleepAsync();
+   public String sleepDefault();
+}
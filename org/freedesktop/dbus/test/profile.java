@@ -18,12 +18,14 @@ import org.freedesktop.DBus.Peer;
 import org.freedesktop.DBus.Introspectable;
 import org.freedesktop.dbus.DBusConnection;
 import org.freedesktop.dbus.DBusSigHandler;
+import org.freedesktop.dbus.Message;
+import org.freedesktop.dbus.MessageReader;
 import org.freedesktop.dbus.UInt32;
 
 class ProfileHandler implements DBusSigHandler<Profiler.ProfileSignal>
 {
-   public int c = 0;
-   public void handle(Profiler.ProfileSignal s)
+   public volatile int c = 0;
+   public synchronized void handle(Profiler.ProfileSignal s)
    {
       if (0 == (c++%profile.SIGNAL_INNER)) System.out.print("-");
    }
@@ -134,6 +136,8 @@ public class profile
             System.out.println("min/max/avg (ms): "+l.min()+"/"+l.max()+"/"+l.mean());
             System.out.println("deviation: "+l.stddev());
             System.out.println("Total time: "+t+"ms");
+            System.out.println("Receive buffers: "+MessageReader.getBufferPool());
+            System.out.println("Encode buffers: "+Message.getBufferPool());
          } else if ("strings".equals(args[0])) {
             int count = STRING_ARRAY_INNER*STRING_ARRAY_OUTER;
             System.out.print("Sending array of "+STRING_ARRAY_LENGTH+" strings "+count+" times.");
@@ -366,6 +370,8 @@ public class profile
             System.out.println("Total time: "+t+"ms");
             while (ph.c < count) try { Thread.sleep(100); }
             catch (InterruptedException Ie) {};
+            System.out.println("Receive buffers: "+MessageReader.getBufferPool());
+            System.out.println("Encode buffers: "+Message.getBufferPool());
          } else {
             conn.disconnect();
             System.out.println("Invalid profile ``"+args[0]+"''.");
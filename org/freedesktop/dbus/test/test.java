@@ -19,9 +19,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import java.text.Collator;
 
+import org.freedesktop.dbus.AbstractConnection;
 import org.freedesktop.dbus.CallbackHandler;
 import org.freedesktop.dbus.DBusAsyncReply;
 import org.freedesktop.dbus.DBusCallInfo;
@@ -29,8 +33,11 @@ import org.freedesktop.dbus.DBusConnection;
 import org.freedesktop.dbus.DBusInterface;
 import org.freedesktop.dbus.DBusSigHandler;
 import org.freedesktop.dbus.DBusSignal;
+import org.freedesktop.dbus.DirectConnection;
 import org.freedesktop.dbus.Marshalling;
 import org.freedesktop.dbus.Path;
+import org.freedesktop.dbus.QueueWatermarkHandler;
+import org.freedesktop.dbus.Transport;
 import org.freedesktop.dbus.UInt16;
 import org.freedesktop.dbus.UInt32;
 import org.freedesktop.dbus.UInt64;
@@ -38,6 +45,7 @@ import org.freedesktop.dbus.Variant;
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.exceptions.DBusExecutionException;
 import org.freedesktop.dbus.exceptions.NotConnected;
+import org.freedesktop.dbus.exceptions.QueueFull;
 
 import org.freedesktop.DBus;
 import org.freedesktop.DBus.Error.MatchRuleInvalid;
@@ -529,6 +537,106 @@ class callbackhandler implements CallbackHandler<String>
    }
 }
 
+/**
+ * Callback handler which expects a NoReply error
+ */
+class noreplyhandler implements CallbackHandler<String>
+{
+   public DBusExecutionException error = null;
+   public synchronized void handle(String r)
+   {
+      test.fail("Callback got a reply from a peer which never replies");
+   }
+   public synchronized void handleError(DBusExecutionException e)
+   {
+      error = e;
+      notifyAll();
+   }
+   public synchronized void waitForError() throws InterruptedException
+   {
+      long end = System.currentTimeMillis() + 10000;
+      while (null == error && System.currentTimeMillis() < end)
+         wait(100);
+   }
+}
+
+/**
+ * Records the calls to a watermark handler
+ */
+class watermarkhandler implements QueueWatermarkHandler
+{
+   public StringBuffer calls = new StringBuffer();
+   public synchronized void high(int size)
+   {
+      calls.append("high ");
+      notifyAll();
+   }
+   public synchronized void low(int size)
+   {
+      calls.append("low ");
+      notifyAll();
+   }
+   public synchronized void waitFor(String expected) throws InterruptedException
+   {
+      long end = System.currentTimeMillis() + 10000;
+      while (!expected.equals(calls.toString()) && System.currentTimeMillis() < end)
+         wait(100);
+   }
+}
+
+/**
+ * Reads and discards messages from a transport
+ */
+class drainer extends Thread
+{
+   private Transport t;
+   public drainer(Transport t)
+   {
+      this.t = t;
+   }
+   public void run()
+   {
+      try {
+         while (true) t.min.readMessage();
+      } catch (Exception e) {}
+   }
+}
+
+/**
+ * Records the order in which calls and signals are handled
+ */
+class orderchecker implements TestOrderInterface, DBusSigHandler<TestOrderInterface.OrderSignal>
+{
+   public Vector<Integer> calls = new Vector<Integer>();
+   public Vector<Integer> signals = new Vector<Integer>();
+   public boolean isRemote() { return false; }
+   public void order(int n)
+   {
+      record(calls, n);
+   }
+   public void handle(TestOrderInterface.OrderSignal s)
+   {
+      record(signals, s.n);
+   }
+   private void record(Vector<Integer> v, int n)
+   {
+      // hold up some of them so any other worker would overtake
+      if (0 == n % 4) try {
+         Thread.sleep(5);
+      } catch (InterruptedException Ie) {}
+      v.add(n);
+      synchronized (this) {
+         notifyAll();
+      }
+   }
+   public synchronized void waitFor(int count) throws InterruptedException
+   {
+      long end = System.currentTimeMillis() + 10000;
+      while ((calls.size() < count || signals.size() < count) && System.currentTimeMillis() < end)
+         wait(100);
+   }
+}
+
 /**
  * This is a test program which sends and recieves a signal, implements, exports and calls a remote method.
  */
@@ -552,6 +660,192 @@ public class test
    }
    static DBusConnection serverconn = null;
    static DBusConnection clientconn = null;
+   static Transport peer = null;
+   /**
+    * Connect to a peer which is just a Transport, so it only reads the
+    * messages sent to it if we read them.
+    */
+   static DirectConnection connectPeer() throws Exception
+   {
+      final String address = DirectConnection.createDynamicTCPSession();
+      Thread listener = new Thread() {
+         public void run()
+         {
+            try {
+               peer = new Transport(address+",listen=true");
+            } catch (Exception e) {
+               e.printStackTrace();
+            }
+         }
+      };
+      listener.start();
+      Thread.sleep(500);
+      DirectConnection dc = new DirectConnection(address);
+      listener.join();
+      if (null == peer) fail("Could not connect to peer");
+      return dc;
+   }
+   /**
+    * Fill the outgoing queue of a connection to a peer which does not
+    * read, and check each queue policy and the watermarks.
+    */
+   static void testQueueLimits() throws Exception
+   {
+      final DirectConnection dc = connectPeer();
+
+      StringBuffer sb = new StringBuffer();
+      for (int i = 0; i < 65536; i++) sb.append('x');
+      final String big = sb.toString();
+      // the peer does not read, so the queue fills once the socket does
+      System.out.print("Testing QueueFull...");
+      // signals are only counted at their full size while there is a byte limit
+      final long bytes = 5*65536+32768;
+      dc.setOutgoingQueueLimits(4, bytes, AbstractConnection.QueueFullPolicy.FAIL);
+      // keep going until the socket buffers have stopped growing too
+      int failures = 0;
+      for (int i = 0; i < 100000 && failures < 20; i++)
+         try {
+            dc.sendSignal(new TestSignalInterface.StringSignal("/Test", big));
+            failures = 0;
+         } catch (QueueFull QF) {
+            failures++;
+            Thread.sleep(50);
+         }
+      if (failures < 20) fail("Outgoing queue never filled");
+      System.out.println("done");
+
+      watermarkhandler wh = new watermarkhandler();
+      dc.setOutgoingQueueWatermarks(3, 1, wh);
+
+      System.out.print("Testing dropping signals...");
+      dc.setOutgoingQueueLimits(4, bytes, AbstractConnection.QueueFullPolicy.DROP_OLDEST_SIGNALS);
+      for (int i = 0; i < 20; i++)
+         dc.sendSignal(new TestSignalInterface.StringSignal("/Test", big));
+      if (!"high ".equals(wh.calls.toString())) fail("Wrong watermark calls: "+wh.calls);
+      System.out.println("done");
+
+      // four signals queued, so there is room in this limit for one more
+      System.out.print("Testing byte limits...");
+      dc.setOutgoingQueueLimits(0, bytes, AbstractConnection.QueueFullPolicy.FAIL);
+      try {
+         dc.sendSignal(new TestSignalInterface.StringSignal("/Test", big));
+      } catch (QueueFull QF) {
+         fail("Byte limit reached too soon");
+      }
+      try {
+         dc.sendSignal(new TestSignalInterface.StringSignal("/Test", big));
+         fail("Byte limit not reached");
+      } catch (QueueFull QF) {}
+      System.out.println("done");
+
+      System.out.print("Testing blocking...");
+      dc.setOutgoingQueueLimits(4, bytes, AbstractConnection.QueueFullPolicy.BLOCK);
+      Thread blocked = new Thread() {
+         public void run()
+         {
+            try {
+               dc.sendSignal(new TestSignalInterface.StringSignal("/Test", big));
+            } catch (DBusException DBe) {
+               fail("Failed to send signal: "+DBe);
+            }
+         }
+      };
+      blocked.start();
+      blocked.join(500);
+      if (!blocked.isAlive()) fail("Sending to a full queue did not block");
+      new drainer(peer).start();
+      blocked.join(10000);
+      if (blocked.isAlive()) fail("Sending did not unblock when the queue emptied");
+      wh.waitFor("high low ");
+      if (!"high low ".equals(wh.calls.toString())) fail("Wrong watermark calls: "+wh.calls);
+      System.out.println("done");
+
+      dc.disconnect();
+      peer.disconnect();
+   }
+   /**
+    * Call a peer which reads the calls but never replies, and check that
+    * each kind of call fails with NoReply when its timeout expires.
+    */
+   static void testTimeouts() throws Exception
+   {
+      DirectConnection dc = connectPeer();
+      new drainer(peer).start();
+      TestTimeoutInterface tti = (TestTimeoutInterface) dc.getRemoteObject("/Test", TestTimeoutInterface.class);
+
+      System.out.print("Testing timeouts on synchronous calls...");
+      long then = System.currentTimeMillis();
+      try {
+         tti.sleep();
+         fail("Call with no reply succeeded");
+      } catch (DBus.Error.NoReply NR) {}
+      if (System.currentTimeMillis() - then > 5000) fail("Call took too long to time out");
+      System.out.println("done");
+
+      System.out.print("Testing timeouts on Futures...");
+      try {
+         tti.sleepAsync().get(10, TimeUnit.SECONDS);
+         fail("Future with no reply succeeded");
+      } catch (ExecutionException EE) {
+         if (!(EE.getCause() instanceof DBus.Error.NoReply))
+            fail("Future failed with the wrong error: "+EE.getCause());
+      } catch (TimeoutException TE) {
+         fail("Future did not time out");
+      }
+      DBusAsyncReply<?> reply = dc.callMethodAsync(tti, 500, "sleepDefault");
+      try {
+         reply.get(10, TimeUnit.SECONDS);
+         fail("Async call with no reply succeeded");
+      } catch (ExecutionException EE) {
+         if (!(EE.getCause() instanceof DBus.Error.NoReply))
+            fail("Async call failed with the wrong error: "+EE.getCause());
+      } catch (TimeoutException TE) {
+         fail("Async call did not time out");
+      }
+      System.out.println("done");
+
+      System.out.print("Testing timeouts on callbacks...");
+      noreplyhandler nrh = new noreplyhandler();
+      dc.callWithCallback(tti, 500, "sleepDefault", nrh);
+      nrh.waitForError();
+      if (!(nrh.error instanceof DBus.Error.NoReply))
+         fail("Callback got the wrong error: "+nrh.error);
+      System.out.println("done");
+
+      dc.disconnect();
+      peer.disconnect();
+   }
+   /**
+    * Send a run of calls and signals to one object path with ordered
+    * dispatch and several workers, and check they are handled in order.
+    */
+   static void testOrderedDispatch() throws Exception
+   {
+      System.out.print("Testing ordered dispatch...");
+      final int count = 100;
+      orderchecker oc = new orderchecker();
+      serverconn.changeThreadCount(8);
+      serverconn.setOrderedDispatch(true);
+      serverconn.exportObject("/Order", oc);
+      serverconn.addSigHandler(TestOrderInterface.OrderSignal.class, oc);
+      TestOrderInterface toi = clientconn.getRemoteObject("foo.bar.Test", "/Order", TestOrderInterface.class);
+      for (int i = 0; i < count; i++) {
+         toi.order(i);
+         clientconn.sendSignal(new TestOrderInterface.OrderSignal("/Order", i));
+      }
+      oc.waitFor(count);
+      serverconn.removeSigHandler(TestOrderInterface.OrderSignal.class, oc);
+      serverconn.unExportObject("/Order");
+      serverconn.setOrderedDispatch(false);
+      serverconn.changeThreadCount(4);
+      for (int i = 0; i < count; i++) {
+         if (oc.calls.size() <= i || i != oc.calls.get(i))
+            fail("Calls handled out of order: "+oc.calls);
+         if (oc.signals.size() <= i || i != oc.signals.get(i))
+            fail("Signals handled out of order: "+oc.signals);
+      }
+      System.out.println("done");
+   }
    @SuppressWarnings("unchecked")
    public static void main(String[] args) 
    { try {
@@ -856,6 +1150,16 @@ public class test
       System.out.println("Do stuff replied "+b);
       if (true != b.booleanValue())
          fail("dostuff return value incorrect");
+
+      System.out.println("Doing stuff asynchronously, waiting on the Future");
+      stuffreply = (DBusAsyncReply<Boolean>) clientconn.callMethodAsync(tri2, "dostuff", new TestStruct("bar", new UInt32(52), new Variant<Boolean>(new Boolean(true))));
+      try {
+         b = stuffreply.get(10, TimeUnit.SECONDS);
+      } catch (Exception e) {
+         fail("dostuff Future failed: "+e);
+      }
+      if (true != b.booleanValue())
+         fail("dostuff Future value incorrect");
       
       System.out.print("Sending Array Signal...");
       /** This creates an instance of the Test Signal, with the given object path, signal name and parameters, and broadcasts in on the Bus. */
@@ -940,6 +1244,10 @@ public class test
 		if (peers.size() != 1) fail("peers hasn't been trimmed");
 		if (!peers.contains("org.freedesktop.DBus")) fail ("peers contains the wrong name");
 
+      testOrderedDispatch();
+      testQueueLimits();
+      testTimeouts();
+
       System.out.println("Checking for outstanding errors");
       DBusExecutionException DBEe = serverconn.getError();
       if (null != DBEe) throw DBEe;
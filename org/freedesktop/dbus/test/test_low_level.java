@@ -10,11 +10,16 @@
 */
 package org.freedesktop.dbus.test;
 import cx.ath.matthew.debug.Debug;
+import java.util.Arrays;
+import java.util.HashMap;
 import org.freedesktop.dbus.BusAddress;
 import org.freedesktop.dbus.DBusSignal;
+import org.freedesktop.dbus.Error;
 import org.freedesktop.dbus.Message;
 import org.freedesktop.dbus.MethodCall;
+import org.freedesktop.dbus.MethodReturn;
 import org.freedesktop.dbus.Transport;
+import org.freedesktop.dbus.Variant;
 
 public class test_low_level
 {
@@ -33,6 +38,7 @@ public class test_low_level
       m = conn.min.readMessage();
       Debug.print(m.getClass());
       Debug.print(m);
+      String unique = (String) m.getParameters()[0];
       m = conn.min.readMessage();
       Debug.print(m.getClass());
       Debug.print(m);
@@ -51,6 +57,39 @@ public class test_low_level
       conn.mout.writeMessage(m);
       m = conn.min.readMessage();
       Debug.print(m);
+
+      // empty arrays of structs and dicts are still padded to 8 bytes
+      m = new MethodCall(unique, "/foo", "org.foo", "Empty", (byte) 0, "a(ii)sa{sv}s", new Object[0], "foo", new HashMap<String, Variant<?>>(), "bar");
+      conn.mout.writeMessage(m);
+      do {
+         m = conn.min.readMessage();
+         Debug.print(m);
+      } while (!(m instanceof MethodCall) || !"Empty".equals(m.getName()));
+      Object[] params = m.getParameters();
+      if (4 != params.length || !"foo".equals(params[1]) || !"bar".equals(params[3])) {
+         System.out.println("Test Failed: empty arrays were not sent correctly: "+Arrays.deepToString(params));
+         System.exit(1);
+      }
+
+      // a call with no destination must be refused without upsetting the daemon
+      m = new MethodCall(null, "/foo", "org.foo", "Nowhere", (byte) 0, null);
+      long serial = m.getSerial();
+      conn.mout.writeMessage(m);
+      do {
+         m = conn.min.readMessage();
+         Debug.print(m);
+      } while (!(m instanceof Error) || serial != m.getReplySerial());
+      if (!"org.freedesktop.DBus.Error.ServiceUnknown".equals(m.getName())) {
+         System.out.println("Test Failed: call with no destination got "+m);
+         System.exit(1);
+      }
+      m = new MethodCall("org.freedesktop.DBus", "/org/freedesktop/DBus", "org.freedesktop.DBus", "ListNames", (byte) 0, null);
+      serial = m.getSerial();
+      conn.mout.writeMessage(m);
+      do {
+         m = conn.min.readMessage();
+         Debug.print(m);
+      } while (!(m instanceof MethodReturn) || serial != m.getReplySerial());
       conn.disconnect();
    }
 }